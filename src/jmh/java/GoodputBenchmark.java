@@ -0,0 +1,291 @@
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * GoodputBenchmark measures whole transfers rather than the per-datagram path of the JMH benchmarks.
+ * An embedded UDPServer serves generated files to the client through an embedded Router, for every
+ * combination of file size, loss rate, RTT and window policy, a few runs each with their own router seed.
+ * It reports the goodput, the completion time percentiles, the share of the DATA packets of the server
+ * that were sent again and the bytes on the wire, as CSV and JSON that can be diffed between builds.
+ * Only the metrics of the server are counted, the client sends nothing but its request.
+ * Everything runs in this JVM, one transfer at a time, so it lives in the default package next to them.
+ *
+ *     mvn -Pjmh package -DskipTests
+ *     java -cp target/benchmarks.jar GoodputBenchmark --sizes 1K,1M --loss 0,0.05 --rtt 0,20 --out goodput
+ *
+ * The sizes go up to 256M by default, add 1G to the list for the largest transfers. The client holds
+ * the whole response in memory, give the JVM a few times more heap than the largest size.
+ */
+public class GoodputBenchmark {
+
+    private static final byte[] LINE = "The quick brown fox jumps over the lazy dog 0123456789\n".getBytes(StandardCharsets.US_ASCII);
+
+    public static void main(String[] args) throws Exception {
+        OptionParser parser = new OptionParser();
+        parser.accepts("sizes", "File sizes, with an optional K, M or G suffix")
+                .withOptionalArg()
+                .defaultsTo("1K,64K,1M,16M,256M");
+        parser.accepts("loss", "Drop rates of the router")
+                .withOptionalArg()
+                .defaultsTo("0,0.01,0.05,0.1,0.2");
+        parser.accepts("rtt", "Round trip times added by the router, in ms")
+                .withOptionalArg()
+                .defaultsTo("0,20");
+        parser.accepts("jitter", "Largest change to the delay of a packet in each direction, in ms")
+                .withOptionalArg()
+                .defaultsTo("0");
+        parser.accepts("policies", "Window policies, a congestion control with +pace for pacing")
+                .withOptionalArg()
+                .defaultsTo("newreno,cubic,newreno+pace");
+        parser.accepts("runs", "Transfers for every combination")
+                .withOptionalArg()
+                .defaultsTo("5");
+        parser.accepts("seed", "Seed of the router in the first run, the next runs add one")
+                .withOptionalArg()
+                .defaultsTo("1");
+        parser.accepts("port", "Port of the embedded server")
+                .withOptionalArg()
+                .defaultsTo("18007");
+        parser.accepts("out", "The report is written to <out>.csv and <out>.json")
+                .withOptionalArg()
+                .defaultsTo("goodput");
+
+        OptionSet opts = parser.parse(args);
+        List<Long> sizes = new ArrayList<>();
+        for (String size : split(opts, "sizes")) {
+            sizes.add(parseSize(size));
+        }
+        List<Double> losses = new ArrayList<>();
+        for (String loss : split(opts, "loss")) {
+            losses.add(Double.parseDouble(loss));
+        }
+        List<Double> rtts = new ArrayList<>();
+        for (String rtt : split(opts, "rtt")) {
+            rtts.add(Double.parseDouble(rtt));
+        }
+        double jitter = Double.parseDouble((String) opts.valueOf("jitter"));
+        List<String> policies = split(opts, "policies");
+        int runs = Integer.parseInt((String) opts.valueOf("runs"));
+        long seed = Long.parseLong((String) opts.valueOf("seed"));
+        int port = Integer.parseInt((String) opts.valueOf("port"));
+        String out = (String) opts.valueOf("out");
+
+        Path root = Files.createTempDirectory("goodput");
+        List<Result> results = new ArrayList<>();
+        try (UDPServer server = new UDPServer(0)) {
+            for (long size : sizes) {
+                writeFile(root.resolve(fileName(size)), size);
+            }
+            RequestHandler.setDocumentRoot(root.toString());
+            server.start(port, 1, false);
+            UDPClient.setServerAddress(new InetSocketAddress("localhost", port));
+            UDPClient.setPrintResponse(false);
+
+            for (long size : sizes) {
+                for (double loss : losses) {
+                    for (double rtt : rtts) {
+                        for (String policy : policies) {
+                            Result result = measure(size, loss, rtt, jitter, policy, runs, seed);
+                            results.add(result);
+                            System.err.println(result.toCsv());
+                        }
+                    }
+                }
+            }
+        } finally {
+            for (long size : sizes) {
+                Files.deleteIfExists(root.resolve(fileName(size)));
+            }
+            Files.deleteIfExists(root);
+        }
+        writeCsv(Paths.get(out + ".csv"), results);
+        writeJson(Paths.get(out + ".json"), results);
+    }
+
+    private static Result measure(long size, double loss, double rtt, double jitter, String policy, int runs, long seed) throws IOException {
+        String[] parts = policy.split("\\+");
+        System.setProperty("cc", parts[0]);
+        if (parts.length > 1 && parts[1].equals("pace")) {
+            System.setProperty("pace", "0");
+        } else {
+            System.clearProperty("pace");
+        }
+        Result result = new Result(size, loss, rtt, policy, runs);
+        TransportMetrics metrics = TransportMetrics.server();
+        for (int run = 0; run < runs; run++) {
+            try (Router router = new Router(0).setDropRate(loss).setDelay(rtt / 2, jitter).setSeed(seed + run).start()) {
+                UDPClient.setRouterAddress(new InetSocketAddress("localhost", router.getPort()));
+                long dataSent = metrics.getPacketsSent().get("DATA");
+                long retransmits = metrics.getRetransmits();
+                long start = System.nanoTime();
+                new UDPClient("localhost", 0).sendRequest(RequestType.GET, "/" + fileName(size), "localhost", "", "", false);
+                long elapsed = System.nanoTime() - start;
+                // the response starts with its headers
+                boolean complete = UDPClient.isResponseComplete() && UDPClient.getResponse().size() >= size;
+                result.add(complete, elapsed, metrics.getPacketsSent().get("DATA") - dataSent,
+                        metrics.getRetransmits() - retransmits, router.getBytesReceived());
+            }
+        }
+        return result;
+    }
+
+    private static List<String> split(OptionSet opts, String option) {
+        return Arrays.asList(((String) opts.valueOf(option)).split(","));
+    }
+
+    static long parseSize(String size) {
+        String s = size.trim().toUpperCase(Locale.ROOT);
+        long unit = 1;
+        if (s.endsWith("K")) {
+            unit = 1024;
+        } else if (s.endsWith("M")) {
+            unit = 1024 * 1024;
+        } else if (s.endsWith("G")) {
+            unit = 1024 * 1024 * 1024;
+        }
+        if (unit > 1) {
+            s = s.substring(0, s.length() - 1);
+        }
+        return Long.parseLong(s) * unit;
+    }
+
+    private static String fileName(long size) {
+        return "goodput-" + size + ".txt";
+    }
+
+    private static void writeFile(Path path, long size) throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocate(1 << 20);
+        while (chunk.remaining() >= LINE.length) {
+            chunk.put(LINE);
+        }
+        chunk.flip();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long written = 0;
+            while (written < size) {
+                ByteBuffer slice = chunk.duplicate();
+                slice.limit((int) Math.min(slice.limit(), size - written));
+                written += channel.write(slice);
+            }
+        }
+    }
+
+    private static void writeCsv(Path path, List<Result> results) throws IOException {
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(path, StandardCharsets.UTF_8))) {
+            writer.println(Result.CSV_HEADER);
+            for (Result result : results) {
+                writer.println(result.toCsv());
+            }
+        }
+    }
+
+    private static void writeJson(Path path, List<Result> results) throws IOException {
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(path, StandardCharsets.UTF_8))) {
+            writer.println("[");
+            for (int i = 0; i < results.size(); i++) {
+                writer.print("  " + results.get(i).toJson());
+                writer.println(i + 1 < results.size() ? "," : "");
+            }
+            writer.println("]");
+        }
+    }
+
+    /**
+     * The runs of one combination of the matrix.
+     */
+    static class Result {
+
+        static final String CSV_HEADER = "size_bytes,loss,rtt_ms,policy,runs,completed,goodput_mbps,"
+                + "completion_p50_ms,completion_p90_ms,completion_p99_ms,server_retransmit_ratio,wire_bytes,wire_overhead";
+
+        final long size;
+        final double loss;
+        final double rtt;
+        final String policy;
+        final long[] completionNanos;
+        int completed = 0;
+        long dataPackets = 0;
+        long retransmits = 0;
+        long wireBytes = 0;
+        int runs = 0;
+
+        Result(long size, double loss, double rtt, String policy, int runs) {
+            this.size = size;
+            this.loss = loss;
+            this.rtt = rtt;
+            this.policy = policy;
+            this.completionNanos = new long[runs];
+        }
+
+        void add(boolean complete, long elapsedNanos, long dataPackets, long retransmits, long wireBytes) {
+            if (complete) {
+                completionNanos[completed++] = elapsedNanos;
+            }
+            this.dataPackets += dataPackets;
+            this.retransmits += retransmits;
+            this.wireBytes += wireBytes;
+            runs++;
+        }
+
+        /**
+         * Returns the completion time of the given percentile of the complete runs in ms, by nearest rank.
+         */
+        double percentileMillis(double percentile) {
+            if (completed == 0) {
+                return Double.NaN;
+            }
+            long[] sorted = Arrays.copyOf(completionNanos, completed);
+            Arrays.sort(sorted);
+            int rank = (int) Math.ceil(percentile / 100 * completed);
+            return sorted[Math.max(0, rank - 1)] / 1e6;
+        }
+
+        double goodputMbps() {
+            double median = percentileMillis(50);
+            return completed == 0 ? 0 : size * 8 / (median * 1000);
+        }
+
+        double retransmitRatio() {
+            return dataPackets == 0 ? 0 : (double) retransmits / dataPackets;
+        }
+
+        long wireBytesPerRun() {
+            return runs == 0 ? 0 : wireBytes / runs;
+        }
+
+        String toCsv() {
+            return String.format(Locale.ROOT, "%d,%.3f,%.1f,%s,%d,%d,%.3f,%.1f,%.1f,%.1f,%.4f,%d,%.3f",
+                    size, loss, rtt, policy, runs, completed, goodputMbps(),
+                    percentileMillis(50), percentileMillis(90), percentileMillis(99),
+                    retransmitRatio(), wireBytesPerRun(), (double) wireBytesPerRun() / size);
+        }
+
+        String toJson() {
+            return String.format(Locale.ROOT, "{\"size_bytes\": %d, \"loss\": %.3f, \"rtt_ms\": %.1f, \"policy\": \"%s\", "
+                            + "\"runs\": %d, \"completed\": %d, \"goodput_mbps\": %.3f, \"completion_p50_ms\": %s, "
+                            + "\"completion_p90_ms\": %s, \"completion_p99_ms\": %s, \"server_retransmit_ratio\": %.4f, "
+                            + "\"wire_bytes\": %d, \"wire_overhead\": %.3f}",
+                    size, loss, rtt, policy, runs, completed, goodputMbps(),
+                    json(percentileMillis(50)), json(percentileMillis(90)), json(percentileMillis(99)),
+                    retransmitRatio(), wireBytesPerRun(), (double) wireBytesPerRun() / size);
+        }
+
+        private static String json(double value) {
+            return Double.isNaN(value) ? "null" : String.format(Locale.ROOT, "%.1f", value);
+        }
+    }
+}
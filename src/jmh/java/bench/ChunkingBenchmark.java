@@ -0,0 +1,40 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures splitting a message into packet payloads with BufferPacketSource, from 1 KB to 100 MB.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+public class ChunkingBenchmark {
+
+    @Param({"1024", "65536", "1048576", "104857600"})
+    public int messageSize;
+
+    private byte[] message;
+
+    @Setup
+    public void setup() {
+        message = new byte[messageSize];
+        Arrays.fill(message, (byte) 'a');
+    }
+
+    @Benchmark
+    public void slicePayloads(Blackhole bh) throws Throwable {
+        Object source = (Object) Targets.NEW_BUFFER_SOURCE.invokeExact(message);
+        ByteBuffer payload;
+        while ((payload = (ByteBuffer) Targets.SOURCE_NEXT.invokeExact(source)) != null) {
+            bh.consume(payload);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures encoding and decoding of a single datagram, the per-packet hot path of both endpoints.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketCodecBenchmark {
+
+    @Param({"0", "512", "1013"})
+    public int payloadSize;
+
+    private Object packet;
+    private byte[] raw;
+    private ByteBuffer rawBuffer;
+    private ByteBuffer sendBuf;
+    private Object view;
+
+    @Setup
+    public void setup() throws Throwable {
+        packet = (Object) Targets.NEW_PACKET.invokeExact(Targets.DATA, 42L, InetAddress.getByName("127.0.0.1"), 8007, new byte[payloadSize]);
+        raw = (byte[]) Targets.TO_BYTES.invokeExact(packet);
+        rawBuffer = ByteBuffer.wrap(raw);
+        sendBuf = ByteBuffer.allocateDirect(1024);
+        view = (Object) Targets.NEW_VIEW.invokeExact();
+    }
+
+    @Benchmark
+    public ByteBuffer toBuffer() throws Throwable {
+        return (ByteBuffer) Targets.TO_BUFFER.invokeExact(packet);
+    }
+
+    @Benchmark
+    public byte[] toBytes() throws Throwable {
+        return (byte[]) Targets.TO_BYTES.invokeExact(packet);
+    }
+
+    @Benchmark
+    public Object fromBuffer() throws Throwable {
+        rawBuffer.rewind();
+        return (Object) Targets.FROM_BUFFER.invokeExact(rawBuffer);
+    }
+
+    @Benchmark
+    public Object fromBytes() throws Throwable {
+        return (Object) Targets.FROM_BYTES.invokeExact(raw);
+    }
+
+    @Benchmark
+    public ByteBuffer writeToSendBuffer() throws Throwable {
+        sendBuf.clear();
+        Targets.WRITE_TO.invokeExact(packet, sendBuf);
+        sendBuf.flip();
+        return sendBuf;
+    }
+
+    @Benchmark
+    public long viewFromBuffer() throws Throwable {
+        rawBuffer.rewind();
+        Object wrapped = (Object) Targets.VIEW_WRAP.invokeExact(view, rawBuffer);
+        return (long) Targets.VIEW_SEQUENCE_NUMBER.invokeExact(wrapped);
+    }
+}
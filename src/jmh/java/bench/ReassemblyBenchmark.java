@@ -0,0 +1,48 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures putting the received payloads back together into the message and decoding it once.
+ * Every other pair of packets arrives swapped, so half of them wait in the ring for their gap.
+ * The server does not join payloads, it streams requests through a RequestReceiver.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+public class ReassemblyBenchmark {
+
+    private static final int WINDOW = 256;
+
+    @Param({"1024", "65536", "1048576", "104857600"})
+    public int messageSize;
+
+    private ByteBuffer payload;
+    private int packets;
+
+    @Setup
+    public void setup() {
+        byte[] chunk = new byte[Targets.DATA_CHUNK_SIZE];
+        Arrays.fill(chunk, (byte) 'a');
+        payload = ByteBuffer.wrap(chunk);
+        packets = (messageSize + Targets.DATA_CHUNK_SIZE - 1) / Targets.DATA_CHUNK_SIZE;
+    }
+
+    @Benchmark
+    public String clientReassembly() throws Throwable {
+        Object buffer = Targets.NEW_REASSEMBLY.invokeExact(WINDOW, (long) packets);
+        for (int i = 0; i < packets; i++) {
+            long seq = (i % 4 == 0 && i + 1 < packets) ? i + 1 : (i % 4 == 1 ? i - 1 : i);
+            boolean put = (boolean) Targets.REASSEMBLY_PUT.invokeExact(buffer, seq, payload.duplicate());
+        }
+        return (String) Targets.REASSEMBLY_DECODE.invokeExact(buffer, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,34 @@
+import java.nio.ByteBuffer;
+
+/**
+ * BufferPacketSource slices a buffer already in memory into packets, without copying it.
+ */
+public class BufferPacketSource implements PacketSource {
+
+    private final ByteBuffer data;
+
+    public BufferPacketSource(ByteBuffer data) {
+        this.data = data.slice();
+    }
+
+    public BufferPacketSource(byte[] data) {
+        this(ByteBuffer.wrap(data));
+    }
+
+    @Override
+    public ByteBuffer next() {
+        if (!data.hasRemaining()) {
+            return null;
+        }
+        int length = Math.min(data.remaining(), UDPClient.DATA_CHUNK_SIZE);
+        ByteBuffer payload = data.duplicate();
+        payload.limit(data.position() + length);
+        data.position(data.position() + length);
+        return payload.slice();
+    }
+
+    @Override
+    public long packetCount() {
+        return PacketSource.packetCount(data.limit());
+    }
+}
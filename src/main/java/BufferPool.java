@@ -0,0 +1,39 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * BufferPool hands out direct BigEndian buffers of Packet.MAX_LEN bytes.
+ * Buffers are meant to be acquired once per socket and released when the socket is closed,
+ * so that sending and receiving datagrams does not allocate on every packet.
+ */
+public class BufferPool {
+
+    private static final BufferPool SHARED = new BufferPool(Packet.MAX_LEN);
+
+    private final int bufferSize;
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+
+    public BufferPool(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+    public ByteBuffer acquire() {
+        ByteBuffer buf = free.poll();
+        if (buf == null) {
+            buf = ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.BIG_ENDIAN);
+        }
+        buf.clear();
+        return buf;
+    }
+
+    public void release(ByteBuffer buf) {
+        if (buf != null && buf.isDirect() && buf.capacity() == bufferSize) {
+            free.offer(buf);
+        }
+    }
+}
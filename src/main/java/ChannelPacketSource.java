@@ -0,0 +1,73 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+
+/**
+ * ChannelPacketSource reads packets from a channel only as the send window asks for them.
+ * Released payload buffers are re-used for the next reads, so a transfer of any size only
+ * keeps about one window of packets on the heap.
+ */
+public class ChannelPacketSource implements PacketSource {
+
+    private final ReadableByteChannel channel;
+    private final long size;
+    private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+    private boolean exhausted;
+
+    /**
+     * size is the number of bytes the channel will produce, or -1 when unknown.
+     */
+    public ChannelPacketSource(ReadableByteChannel channel, long size) {
+        this.channel = channel;
+        this.size = size;
+    }
+
+    public static ChannelPacketSource open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        return new ChannelPacketSource(channel, channel.size());
+    }
+
+    @Override
+    public ByteBuffer next() throws IOException {
+        if (exhausted) {
+            return null;
+        }
+        ByteBuffer payload = free.poll();
+        if (payload == null) {
+            payload = ByteBuffer.allocate(UDPClient.DATA_CHUNK_SIZE);
+        }
+        payload.clear();
+        // Fill the whole packet, a channel may return less than asked for.
+        while (payload.hasRemaining()) {
+            if (channel.read(payload) < 0) {
+                exhausted = true;
+                break;
+            }
+        }
+        payload.flip();
+        if (!payload.hasRemaining()) {
+            free.offer(payload);
+            return null;
+        }
+        return payload;
+    }
+
+    @Override
+    public long packetCount() {
+        return (size < 0) ? -1 : PacketSource.packetCount(size);
+    }
+
+    @Override
+    public void release(ByteBuffer payload) {
+        free.offer(payload);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,502 @@
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import static java.nio.channels.SelectionKey.OP_READ;
+
+/**
+ * ClientSession is a connection to the server that carries many requests after a single handshake.
+ * Every request goes on a stream of its own, numbered from 0: its DATA, SACK, ACK and FIN packets carry
+ * the id of the stream after the fixed header, and each stream has its own sender, SACK state and
+ * ReassemblyBuffer for the response. Streams run side by side, so a small request is not held up behind
+ * a large download, and the FIN of a stream ends its response but not the session. close sends a FIN
+ * outside of any stream, the server also drops a session that went quiet.
+ * Like the rest of the client, the session is driven by the thread calling await.
+ */
+public class ClientSession implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ClientSession.class);
+
+    private static final int MAX_TIMEOUTS = 6;
+    private static final long NO_DEADLINE = Long.MAX_VALUE;
+    // Timer ids of the delayed SACK and of a stream waiting on the server, the senders number their
+    // timers by sequence number from 0 and use SelectiveRepeatSender.PACING_TIMER.
+    private static final long SACK_TIMER = -1;
+    private static final long RESPONSE_TIMER = -3;
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final SocketAddress routerAddr;
+    private final ByteBuffer receiveBuf = BufferPool.shared().acquire();
+    private final ByteBuffer sendBuf = BufferPool.shared().acquire();
+    private final PacketView received = new PacketView();
+    private final TimingWheel timers = new TimingWheel();
+    private final RttEstimator rtt = new RttEstimator();
+    private final HashMap<Integer, Stream> streams = new HashMap<>();
+    private InetSocketAddress serverAddr;
+    private int serverAddress;
+    private int serverPort;
+    // Advertised by the server in the SYN_ACK.
+    private int serverWindow = SelectiveAck.DEFAULT_RECEIVE_WINDOW;
+    private int nextStreamId = 0;
+    private boolean connected = false;
+
+    private ClientSession(SocketAddress routerAddr, InetSocketAddress serverAddr) throws IOException {
+        this.routerAddr = routerAddr;
+        setServerAddr(serverAddr);
+        this.channel = DatagramChannel.open();
+        this.selector = Selector.open();
+        channel.bind(new InetSocketAddress(0));
+        // Everything goes through the router, connecting to it lets the senders use gathering writes.
+        channel.connect(routerAddr);
+        channel.configureBlocking(false);
+        channel.register(selector, OP_READ);
+    }
+
+    /**
+     * Opens a session with the server behind the router, returns once the handshake is done.
+     */
+    public static ClientSession open(SocketAddress routerAddr, InetSocketAddress serverAddr) throws IOException {
+        TransportMetrics.client().register("client");
+        ClientSession session = new ClientSession(routerAddr, serverAddr);
+        try {
+            session.handshake();
+        } catch (IOException e) {
+            session.close();
+            throw e;
+        }
+        return session;
+    }
+
+    /**
+     * Returns the address of the server, which is the port of its event loop once the handshake is done.
+     */
+    public InetSocketAddress getServerAddr() {
+        return serverAddr;
+    }
+
+    /**
+     * Returns the number of streams that are not done yet.
+     */
+    public int getOpenStreams() {
+        return streams.size();
+    }
+
+    private void setServerAddr(InetSocketAddress serverAddr) {
+        this.serverAddr = serverAddr;
+        this.serverAddress = Packet.addressToInt(serverAddr.getAddress());
+        this.serverPort = serverAddr.getPort();
+    }
+
+    /**
+     * Sends the SYN until the SYN_ACK arrives, which gives the port of the loop owning the session and
+     * the receive window of the server. The ACK closing the handshake is not waited on, the first
+     * request follows right behind it.
+     */
+    private void handshake() throws IOException {
+        byte[] syn = ServerSession.STREAMS_SYN.getBytes(StandardCharsets.UTF_8);
+        boolean synResent = false;
+        for (int attempt = 0; attempt <= MAX_TIMEOUTS; attempt++) {
+            long sentAt = System.nanoTime();
+            sendControl(UDPClient.SYN, 0, Packet.NO_STREAM, syn);
+            PacketView synAck = awaitSynAck(System.currentTimeMillis() + rtt.getRtoMillis());
+            if (synAck == null) {
+                logger.error("No response after timeout. Sending SYN again.");
+                rtt.onTimeout();
+                synResent = true;
+                continue;
+            }
+            if (!synResent) {
+                long sample = System.nanoTime() - sentAt;
+                rtt.onSample(sample);
+                TransportMetrics.client().onRttSample(sample);
+            }
+            String[] advertised = synAck.payloadToString().trim().split(" ");
+            UDPClient.keepToken(advertised, serverAddr);
+            setServerAddr(UDPClient.advertisedAddress(advertised, serverAddr));
+            serverWindow = UDPClient.advertisedWindow(advertised);
+            sendControl(UDPClient.ACK, 1, Packet.NO_STREAM, UDPServer.EMPTY_PAYLOAD);
+            connected = true;
+            logger.info("Session open with {}", serverAddr);
+            return;
+        }
+        throw new IOException("No SYN_ACK from " + serverAddr + " after " + MAX_TIMEOUTS + " timeouts");
+    }
+
+    private PacketView awaitSynAck(long deadline) throws IOException {
+        long wait;
+        while ((wait = deadline - System.currentTimeMillis()) > 0) {
+            if (selector.select(wait) == 0) {
+                continue;
+            }
+            selector.selectedKeys().clear();
+            PacketView packet;
+            while ((packet = receive()) != null) {
+                if (packet.getType() == UDPClient.SYN_ACK) {
+                    return packet;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Starts sending a request on a new stream. With MAX_STREAMS streams open already, it first waits
+     * for one of them to be done.
+     */
+    public Stream request(PacketSource source) throws IOException {
+        while (streams.size() >= ServerSession.MAX_STREAMS) {
+            poll();
+        }
+        if (nextStreamId > Packet.MAX_STREAM_ID) {
+            source.close();
+            throw new IOException("Every stream id of the session was used, open another session");
+        }
+        Stream stream = new Stream(nextStreamId++, source);
+        streams.put(stream.id, stream);
+        stream.start();
+        return stream;
+    }
+
+    public Stream request(byte[] message) throws IOException {
+        return request(new BufferPacketSource(message));
+    }
+
+    /**
+     * Runs the session until the given stream is done, the other streams make progress meanwhile.
+     */
+    public void await(Stream stream) throws IOException {
+        while (!stream.isDone()) {
+            poll();
+        }
+    }
+
+    /**
+     * Runs the session until every stream is done.
+     */
+    public void awaitAll() throws IOException {
+        while (!streams.isEmpty()) {
+            poll();
+        }
+    }
+
+    /**
+     * Waits for packets until the next timer is due, hands them to their streams, then fires the timers.
+     */
+    private void poll() throws IOException {
+        long deadline = timers.nextDeadline();
+        selector.select(deadline == Long.MAX_VALUE ? 0 : Math.max(1, deadline - System.currentTimeMillis()));
+        selector.selectedKeys().clear();
+        // Take every packet that is queued before firing the timers, they may acknowledge the packets that are due.
+        PacketView packet;
+        while ((packet = receive()) != null) {
+            Stream stream = streams.get(packet.getStreamId());
+            if (stream != null) {
+                stream.onPacket(packet);
+            } else if (packet.getStreamId() != Packet.NO_STREAM && packet.getType() == UDPClient.FIN) {
+                // The ACK of the FIN was lost, the stream is done on this side already.
+                sendControl(UDPClient.ACK, packet.getSequenceNumber(), packet.getStreamId(), UDPServer.EMPTY_PAYLOAD);
+            }
+            // Anything else is a duplicate SYN_ACK or left over from a stream that is done.
+        }
+        timers.advance(System.currentTimeMillis());
+    }
+
+    /**
+     * Receives a single packet into the receive buffer, null if none is queued.
+     * The returned view is only valid until the next call.
+     */
+    private PacketView receive() throws IOException {
+        for (; ; ) {
+            receiveBuf.clear();
+            SocketAddress router;
+            try {
+                router = channel.receive(receiveBuf);
+            } catch (PortUnreachableException e) {
+                // Nothing listens at the router address (yet), the datagram sent there was lost.
+                continue;
+            }
+            if (router == null) {
+                return null;
+            }
+            receiveBuf.flip();
+            try {
+                received.wrap(receiveBuf);
+            } catch (IOException e) {
+                logger.error("Dropping invalid packet from {}", router);
+                continue;
+            }
+            TransportMetrics.client().onReceived(received.getType());
+            if (logger.isDebugEnabled()) {
+                logger.debug("Received {} Packet #{} of stream {} from router at {}", UDPServer.packetTypeToString(received.getType()),
+                        received.getSequenceNumber(), received.getStreamId(), router);
+            }
+            return received;
+        }
+    }
+
+    /**
+     * Writes the send buffer to the router. An ICMP error of an earlier datagram may surface here,
+     * the packet then counts as lost and its timer sends it again.
+     */
+    private void write() throws IOException {
+        try {
+            channel.write(sendBuf);
+        } catch (PortUnreachableException e) {
+            logger.debug("The router at {} is unreachable", routerAddr);
+        }
+    }
+
+    private void sendControl(int type, long sequenceNumber, int streamId, byte[] payload) throws IOException {
+        Packet.encode(sendBuf, type, sequenceNumber, serverAddress, serverPort, streamId, payload);
+        write();
+        TransportMetrics.client().onSent(type);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Sending {} Packet #{} of stream {} to router at {}", UDPServer.packetTypeToString(type), sequenceNumber, streamId, routerAddr);
+        }
+    }
+
+    /**
+     * Tells the server the session is over and releases it. The streams that are not done are dropped.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (connected && channel.isOpen()) {
+                sendControl(UDPClient.FIN, 0, Packet.NO_STREAM, UDPServer.FIN_PAYLOAD);
+            }
+        } finally {
+            connected = false;
+            for (Stream stream : new ArrayList<>(streams.values())) {
+                stream.fail("the session was closed");
+            }
+            selector.close();
+            channel.close();
+            BufferPool.shared().release(receiveBuf);
+            BufferPool.shared().release(sendBuf);
+        }
+    }
+
+    /**
+     * Stream is one request of the session and its response.
+     */
+    public class Stream implements TimingWheel.Listener {
+
+        private final int id;
+        private final SelectiveRepeatSender sender;
+        // Advertises the full window like UDPClient, the response is kept whole until the stream is dropped.
+        private final SelectiveAck sack = new SelectiveAck();
+        private final ReassemblyBuffer response = new ReassemblyBuffer(SelectiveAck.DEFAULT_RECEIVE_WINDOW, -1);
+        // Set once the whole request is acknowledged and its FIN sent.
+        private boolean requestSent = false;
+        private boolean complete = false;
+        private boolean failed = false;
+        private long sackDeadline = NO_DEADLINE;
+        private long responseDeadline = NO_DEADLINE;
+        private final TimingWheel.Timer sackTimer = new TimingWheel.Timer(this);
+        private final TimingWheel.Timer responseTimer = new TimingWheel.Timer(this);
+        private int responseTimeouts = 0;
+        private boolean receivedSinceTimer = false;
+
+        private Stream(int id, PacketSource source) {
+            this.id = id;
+            this.sender = new SelectiveRepeatSender(source, serverAddr, channel, routerAddr)
+                    .setStreamId(id)
+                    .setRttEstimator(rtt)
+                    .setReceiveWindow(serverWindow)
+                    .setMaxTimeouts(MAX_TIMEOUTS)
+                    .setTimers(timers, this);
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        /**
+         * Returns the response received so far, in order.
+         */
+        public ReassemblyBuffer getResponse() {
+            return response;
+        }
+
+        /**
+         * True once the FIN of the server arrived after every packet of the response.
+         */
+        public boolean isComplete() {
+            return complete;
+        }
+
+        public boolean isDone() {
+            return complete || failed;
+        }
+
+        private void start() throws IOException {
+            sender.start();
+            checkRequest();
+        }
+
+        private void onPacket(PacketView packet) throws IOException {
+            switch (packet.getType()) {
+                case UDPClient.ACK:
+                case UDPClient.SACK:
+                case UDPClient.NAK:
+                    if (!requestSent) {
+                        sender.onResponse(packet);
+                        checkRequest();
+                    }
+                    break;
+                case UDPClient.DATA:
+                    if (requestSent) {
+                        receiveData(packet);
+                    }
+                    break;
+                case UDPClient.FIN:
+                    if (requestSent) {
+                        finish(packet.getSequenceNumber());
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public void onTimer(long timer, long deadline) throws IOException {
+            if (isDone()) {
+                return;
+            }
+            if (timer == SACK_TIMER) {
+                if (deadline == sackDeadline) {
+                    sendSack();
+                }
+            } else if (timer == RESPONSE_TIMER) {
+                if (deadline == responseDeadline) {
+                    onResponseTimeout();
+                }
+            } else if (!requestSent) {
+                sender.onTimer(timer, deadline);
+                checkRequest();
+            }
+        }
+
+        /**
+         * Sends the FIN of the request once every packet of it is acknowledged.
+         */
+        private void checkRequest() throws IOException {
+            if (!sender.isDone()) {
+                return;
+            }
+            if (!sender.isComplete()) {
+                fail("the request was not acknowledged");
+                return;
+            }
+            requestSent = true;
+            sender.close();
+            sendControl(UDPClient.FIN, sender.getNextSequenceNumber(), id, UDPServer.FIN_PAYLOAD);
+            armResponseTimer();
+        }
+
+        private void receiveData(PacketView packet) throws IOException {
+            long seq = packet.getSequenceNumber();
+            receivedSinceTimer = true;
+            if (!sack.isInWindow(seq)) {
+                // Dropped, the SACK tells the server how far it may go.
+                sendSack();
+                return;
+            }
+            response.put(seq, packet.getPayload());
+            if (sack.record(seq)) {
+                sendSack();
+            } else if (sackDeadline == NO_DEADLINE) {
+                // Hold back the SACK for a little while, so that it covers the next DATA packets too.
+                sackDeadline = System.currentTimeMillis() + SelectiveAck.DELAYED_ACK_MS;
+                timers.schedule(sackTimer, SACK_TIMER, sackDeadline);
+            }
+        }
+
+        /**
+         * The sequence number of the FIN is the number of DATA packets of the response.
+         */
+        private void finish(long packets) throws IOException {
+            sendControl(UDPClient.ACK, packets, id, UDPServer.EMPTY_PAYLOAD);
+            if (response.getNextSequenceNumber() < packets) {
+                fail("only " + response.getNextSequenceNumber() + " of " + packets + " packets of the response arrived in order");
+                return;
+            }
+            complete = true;
+            cancelTimers();
+            streams.remove(id, this);
+        }
+
+        /**
+         * Nothing came from the server for a while. Before the first packet of the response the FIN may
+         * have been lost and is sent again, afterwards a SACK reminds the server of what is missing.
+         * The timer backs off, and the stream fails after MAX_TIMEOUTS quiet periods in a row.
+         */
+        private void onResponseTimeout() throws IOException {
+            if (receivedSinceTimer) {
+                responseTimeouts = 0;
+            } else if (++responseTimeouts > MAX_TIMEOUTS) {
+                fail("no response after " + MAX_TIMEOUTS + " timeouts");
+                return;
+            } else if (!sack.hasReceived()) {
+                sendControl(UDPClient.FIN, sender.getNextSequenceNumber(), id, UDPServer.FIN_PAYLOAD);
+            } else {
+                sendSack();
+            }
+            receivedSinceTimer = false;
+            armResponseTimer();
+        }
+
+        private void armResponseTimer() {
+            responseDeadline = System.currentTimeMillis() + (rtt.getRtoMillis() << responseTimeouts);
+            timers.schedule(responseTimer, RESPONSE_TIMER, responseDeadline);
+        }
+
+        private void sendSack() throws IOException {
+            sackDeadline = NO_DEADLINE;
+            timers.cancel(sackTimer);
+            sack.writeTo(sendBuf, serverAddress, serverPort, id);
+            write();
+            TransportMetrics.client().onSent(UDPClient.SACK);
+            if (logger.isDebugEnabled()) {
+                logger.debug("Sending SACK Packet #{} of stream {} to router at {}", sack.getCumulative(), id, routerAddr);
+            }
+        }
+
+        private void cancelTimers() {
+            timers.cancel(sackTimer);
+            timers.cancel(responseTimer);
+        }
+
+        private void fail(String reason) {
+            if (isDone()) {
+                return;
+            }
+            logger.error("Stream {} failed, {}.", id, reason);
+            failed = true;
+            cancelTimers();
+            streams.remove(id, this);
+            if (requestSent) {
+                // Closed once the request was acknowledged.
+                return;
+            }
+            try {
+                sender.close();
+            } catch (IOException e) {
+                logger.error("Could not close the request of stream {}", id, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * CompositePacketSource sends several sources one after the other, e.g. the headers of a message
+ * followed by a file. Packets never span two sources, the last packet of each may be short.
+ */
+public class CompositePacketSource implements PacketSource {
+
+    private final List<PacketSource> sources;
+    private final IdentityHashMap<ByteBuffer, PacketSource> owners = new IdentityHashMap<>();
+    private int current = 0;
+
+    public CompositePacketSource(PacketSource... sources) {
+        this.sources = new ArrayList<>(Arrays.asList(sources));
+    }
+
+    @Override
+    public ByteBuffer next() throws IOException {
+        while (current < sources.size()) {
+            PacketSource source = sources.get(current);
+            ByteBuffer payload = source.next();
+            if (payload != null) {
+                owners.put(payload, source);
+                return payload;
+            }
+            current++;
+        }
+        return null;
+    }
+
+    @Override
+    public long packetCount() {
+        long count = 0;
+        for (PacketSource source : sources) {
+            if (source.packetCount() < 0) {
+                return -1;
+            }
+            count += source.packetCount();
+        }
+        return count;
+    }
+
+    @Override
+    public void release(ByteBuffer payload) {
+        PacketSource owner = owners.remove(payload);
+        if (owner != null) {
+            owner.release(payload);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (PacketSource source : sources) {
+            try {
+                source.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
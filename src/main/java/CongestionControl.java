@@ -0,0 +1,51 @@
+/**
+ * CongestionControl decides how many packets a SelectiveRepeatSender may have in flight.
+ * The sender reports acknowledged packets, losses and timeouts, and never sends past getWindow().
+ * A loss is reported at most once per window of data, the sender keeps track of the recovery point.
+ */
+public interface CongestionControl {
+
+    int INITIAL_WINDOW = 10;
+    int MIN_WINDOW = 2;
+
+    /**
+     * Returns the congestion window, in packets.
+     */
+    int getWindow();
+
+    /**
+     * Called when packets are newly acknowledged. smoothedRttNanos is the current estimate, -1 if none yet.
+     */
+    void onAck(int packets, long smoothedRttNanos);
+
+    /**
+     * Called when a packet was reported missing by a NAK or the receiver's SACKs.
+     */
+    void onLoss();
+
+    /**
+     * Called on a retransmission timeout of the oldest packet in flight.
+     */
+    void onTimeout();
+
+    /**
+     * Returns the controller with the given name, "newreno" or "cubic".
+     */
+    static CongestionControl create(String name) {
+        switch (name.toLowerCase()) {
+            case "newreno":
+                return new NewRenoCongestionControl();
+            case "cubic":
+                return new CubicCongestionControl();
+            default:
+                throw new IllegalArgumentException("Unknown congestion control: " + name);
+        }
+    }
+
+    /**
+     * Returns the controller named by the cc system property, NewReno when it is not set.
+     */
+    static CongestionControl createDefault() {
+        return create(System.getProperty("cc", "newreno"));
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * CubicCongestionControl grows the window along the cubic function of CUBIC (RFC 8312), counted in packets.
+ * After a loss the window grows quickly back towards the size it had when the loss happened, flattens out
+ * around it and then probes further. The growth depends on the time since the loss rather than on the
+ * number of ACKs, so it is fair to flows with a longer RTT. The window never grows slower than NewReno would.
+ */
+public class CubicCongestionControl implements CongestionControl {
+
+    private static final double C = 0.4;
+    private static final double BETA = 0.7;
+
+    private double window = INITIAL_WINDOW;
+    private double slowStartThreshold = Double.MAX_VALUE;
+    private double windowAtLoss = 0;
+    private long epochStartNanos = -1;
+    private double k = 0;
+    // The window NewReno would have, for the TCP-friendly region.
+    private double renoWindow = 0;
+
+    @Override
+    public int getWindow() {
+        return (int) window;
+    }
+
+    @Override
+    public void onAck(int packets, long smoothedRttNanos) {
+        while (packets > 0 && window < slowStartThreshold) {
+            window += 1;
+            packets -= 1;
+        }
+        if (packets <= 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (epochStartNanos < 0) {
+            epochStartNanos = now;
+            if (windowAtLoss < window) {
+                windowAtLoss = window;
+                k = 0;
+            } else {
+                k = Math.cbrt(windowAtLoss * (1 - BETA) / C);
+            }
+            renoWindow = window;
+        }
+        double rtt = smoothedRttNanos > 0 ? smoothedRttNanos / 1e9 : 0;
+        double t = (now - epochStartNanos) / 1e9 + rtt;
+        double target = C * Math.pow(t - k, 3) + windowAtLoss;
+        for (int i = 0; i < packets; i++) {
+            renoWindow += 3 * (1 - BETA) / (1 + BETA) / renoWindow;
+            double goal = Math.max(target, renoWindow);
+            if (goal > window) {
+                // At most half a packet per ACK, like the Linux implementation.
+                window += Math.min((goal - window) / window, 0.5);
+            } else {
+                window += 0.01 / window;
+            }
+        }
+    }
+
+    @Override
+    public void onLoss() {
+        epochStartNanos = -1;
+        windowAtLoss = window;
+        window = Math.max(window * BETA, MIN_WINDOW);
+        slowStartThreshold = window;
+    }
+
+    @Override
+    public void onTimeout() {
+        onLoss();
+        window = 1;
+    }
+}
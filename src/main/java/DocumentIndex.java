@@ -0,0 +1,241 @@
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * DocumentIndex holds what the server needs to know about every file and directory under the document
+ * root: its attributes, whether it is readable and writable, and its MIME type. It is built when the
+ * server starts and kept current by a WatchService on a thread of its own, so checking a request
+ * takes a lookup instead of a round of system calls. The server refreshes the files it writes
+ * itself at once, rather than waiting for the watcher to catch up.
+ * A path that does not exist has no entry. Paths outside of the root are not covered, they are read
+ * from the file system as before.
+ */
+public class DocumentIndex implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(DocumentIndex.class);
+
+    private final Path root;
+    private final ConcurrentHashMap<Path, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<WatchKey, Path> directories = new ConcurrentHashMap<>();
+    private final WatchService watcher;
+    private final Thread thread;
+
+    private DocumentIndex(Path root) throws IOException {
+        this.root = root.toAbsolutePath().normalize();
+        this.watcher = this.root.getFileSystem().newWatchService();
+        this.thread = new Thread(this::watch, "document-index");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Indexes everything under root and starts watching it.
+     */
+    public static DocumentIndex open(Path root) throws IOException {
+        DocumentIndex index = new DocumentIndex(root);
+        index.scan(index.root);
+        index.thread.start();
+        logger.info("Indexed {} paths under {}", index.entries.size(), index.root);
+        return index;
+    }
+
+    /**
+     * Reads the entry of a path from the file system, null if there is nothing there.
+     */
+    public static Entry read(Path path) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            String contentType = attrs.isDirectory() ? null : Files.probeContentType(path);
+            return new Entry(attrs, Files.isReadable(path), Files.isWritable(path), contentType);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public boolean covers(Path path) {
+        return key(path).startsWith(root);
+    }
+
+    /**
+     * Returns the entry of a path the index covers, null if there is nothing there.
+     */
+    public Entry lookup(Path path) {
+        return entries.get(key(path));
+    }
+
+    /**
+     * Reads the entry of a path again, e.g. after the server wrote to it.
+     */
+    public Entry refresh(Path path) {
+        Path key = key(path);
+        Entry old = entries.get(key);
+        Entry entry;
+        if (old != null && !old.isDirectory()) {
+            // The MIME type goes by the name, only the attributes changed.
+            entry = old.withAttributes(key);
+        } else {
+            entry = read(key);
+        }
+        if (entry == null) {
+            entries.remove(key);
+        } else {
+            entries.put(key, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Stops watching the root.
+     */
+    @Override
+    public void close() throws IOException {
+        watcher.close();
+    }
+
+    private void scan(Path start) {
+        try {
+            Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    WatchKey key = dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                    directories.put(key, dir);
+                    index(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    index(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    // Gone already, or not readable, which the requests find out for themselves.
+                    index(file);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            logger.error("Could not index {}", start, e);
+        }
+    }
+
+    private void index(Path path) {
+        Entry entry = read(path);
+        if (entry != null) {
+            entries.put(path, entry);
+        }
+    }
+
+    /**
+     * Applies the events of the watcher until it is closed.
+     */
+    private void watch() {
+        try {
+            for (; ; ) {
+                WatchKey key = watcher.take();
+                Path dir = directories.get(key);
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        logger.info("Missed changes under {}, indexing it again", root);
+                        entries.keySet().removeIf(path -> Files.notExists(path));
+                        scan(root);
+                    } else if (dir != null) {
+                        onEvent(event.kind(), dir.resolve((Path) event.context()));
+                    }
+                }
+                if (!key.reset()) {
+                    // The directory is gone.
+                    directories.remove(key);
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            // Closed with the server.
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void onEvent(WatchEvent.Kind<?> kind, Path path) {
+        if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+            entries.keySet().removeIf(indexed -> indexed.startsWith(path));
+        } else if (kind == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+            // Files may have been created in it before it was watched.
+            scan(path);
+        } else {
+            refresh(path);
+        }
+    }
+
+    private static Path key(Path path) {
+        return path.toAbsolutePath().normalize();
+    }
+
+    /**
+     * Entry is what the index knows about one path.
+     */
+    public static class Entry {
+
+        private final BasicFileAttributes attributes;
+        private final boolean readable;
+        private final boolean writable;
+        private final String contentType;
+
+        private Entry(BasicFileAttributes attributes, boolean readable, boolean writable, String contentType) {
+            this.attributes = attributes;
+            this.readable = readable;
+            this.writable = writable;
+            this.contentType = contentType;
+        }
+
+        private Entry withAttributes(Path path) {
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+                if (attrs.isDirectory()) {
+                    return read(path);
+                }
+                return new Entry(attrs, Files.isReadable(path), Files.isWritable(path), contentType);
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        public BasicFileAttributes getAttributes() {
+            return attributes;
+        }
+
+        public boolean isDirectory() {
+            return attributes.isDirectory();
+        }
+
+        public boolean isReadable() {
+            return readable;
+        }
+
+        public boolean isWritable() {
+            return writable;
+        }
+
+        /**
+         * Returns the MIME type of a file as Files.probeContentType gives it, null for a directory.
+         */
+        public String getContentType() {
+            return contentType;
+        }
+    }
+}
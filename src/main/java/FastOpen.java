@@ -0,0 +1,133 @@
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Properties;
+
+/**
+ * FastOpen lets a client that talked to the server before send its request without waiting for the
+ * SYN_ACK, like TCP Fast Open. Every SYN_ACK carries a token, a MAC of the client address under a secret
+ * of the server. A client holding a token sends it in its SYN ("SYN TOKEN <token>") with the first window
+ * of DATA right behind it, and the server serves the request as soon as it is in, one round trip earlier.
+ * A request under a token the server does not accept, e.g. after a restart, is held until the client
+ * completes the handshake with its ACK.
+ *
+ * Clients only use it with -Dfastopen=true, otherwise they do the full handshake and keep no tokens.
+ * The client keeps the tokens for the life of the JVM, and in the file named by the fastopen.file system
+ * property across runs.
+ */
+public class FastOpen {
+
+    private static final Logger logger = LoggerFactory.getLogger(FastOpen.class);
+
+    static final String TOKEN = "TOKEN";
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int TOKEN_BYTES = 8;
+    private static final byte[] SECRET = new byte[32];
+
+    // Tokens of the servers, keyed by host:port.
+    private static final Properties tokens = new Properties();
+    private static boolean loaded = false;
+
+    static {
+        new SecureRandom().nextBytes(SECRET);
+    }
+
+    /**
+     * Returns the token of the client at the given address, see Packet.addressToInt.
+     */
+    public static String issue(int clientAddress) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(SECRET, ALGORITHM));
+            byte[] digest = mac.doFinal(ByteBuffer.allocate(4).putInt(clientAddress).array());
+            StringBuilder token = new StringBuilder();
+            for (int i = 0; i < TOKEN_BYTES; i++) {
+                token.append(String.format("%02x", digest[i] & 0xFF));
+            }
+            return token.toString();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        }
+    }
+
+    public static boolean isValid(int clientAddress, String token) {
+        return MessageDigest.isEqual(issue(clientAddress).getBytes(StandardCharsets.US_ASCII), token.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Returns the token following TOKEN in the words of a SYN or a SYN_ACK, or null.
+     */
+    public static String tokenOf(String[] words) {
+        for (int i = 0; i + 1 < words.length; i++) {
+            if (words[i].equals(TOKEN)) {
+                return words[i + 1];
+            }
+        }
+        return null;
+    }
+
+    public static boolean isEnabled() {
+        return Boolean.getBoolean("fastopen");
+    }
+
+    /**
+     * Returns the token the given server handed out last, or null.
+     */
+    public static synchronized String getToken(InetSocketAddress server) {
+        load();
+        return tokens.getProperty(key(server));
+    }
+
+    public static synchronized void putToken(InetSocketAddress server, String token) {
+        load();
+        if (token.equals(tokens.setProperty(key(server), token))) {
+            return;
+        }
+        Path file = file();
+        if (file == null) {
+            return;
+        }
+        try (OutputStream out = Files.newOutputStream(file)) {
+            tokens.store(out, "Fast open tokens");
+        } catch (IOException e) {
+            logger.error("Could not save the fast open tokens to {}", file, e);
+        }
+    }
+
+    private static void load() {
+        Path file = file();
+        if (loaded || file == null || !Files.exists(file)) {
+            loaded = true;
+            return;
+        }
+        loaded = true;
+        try (InputStream in = Files.newInputStream(file)) {
+            tokens.load(in);
+        } catch (IOException e) {
+            logger.error("Could not read the fast open tokens from {}", file, e);
+        }
+    }
+
+    private static Path file() {
+        String file = System.getProperty("fastopen.file");
+        return file == null ? null : Paths.get(file);
+    }
+
+    private static String key(InetSocketAddress server) {
+        return server.getHostString() + ":" + server.getPort();
+    }
+}
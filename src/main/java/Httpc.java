@@ -5,7 +5,9 @@ import java.io.*;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.net.URL;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.List;
 
 
 public class Httpc {
@@ -19,6 +21,7 @@ public class Httpc {
     static int urlIndex = 1;
     static boolean outputToFile = false;
     static String filepath = "";
+    static String bodyFile = "";
 
     public static void main(String[] args) {
 
@@ -53,8 +56,18 @@ public class Httpc {
             host = url.getHost();
             endpoint = url.getFile();
             UDPClient client = new UDPClient(host, (url.getPort()==-1) ? 80: url.getPort());
+            // Several URLs are fetched at once, over one session.
+            List<String> endpoints = new ArrayList<>();
+            for (int i = urlIndex; i < args.length && !args[i].startsWith("-"); i++) {
+                endpoints.add(new URL(args[i]).getFile());
+            }
+            if (requestType == RequestType.GET && endpoints.size() > 1) {
+                client.sendGetRequests(endpoints, host, header);
+                return;
+            }
             client.setOutputToFile(outputToFile);
             client.setFilePath(filepath);
+            if (!bodyFile.isEmpty()) client.setBodyFile(Paths.get(bodyFile));
             client.sendRequest(requestType, endpoint, host, header, data, verbose);
         } catch (IOException e) {
             e.printStackTrace();
@@ -85,7 +98,7 @@ public class Httpc {
                 }
             } else if(args[urlIndex].equalsIgnoreCase("-f")){
                 if (args.length > urlIndex+1) {
-                    data = convertFileToString(args[urlIndex+1]);
+                    bodyFile = args[urlIndex+1];
                     urlIndex += 2;
                 } else {
                     invalidSyntax(requestType);
@@ -109,21 +122,4 @@ public class Httpc {
         System.exit(0);
     }
 
-    public static String convertFileToString(String filepath){
-        BufferedReader bufferedReader;
-        StringBuilder str = new StringBuilder();
-        try {
-            bufferedReader = new BufferedReader(new FileReader(filepath));
-            String line = bufferedReader.readLine();
-            while (line != null) {
-                str.append(line);
-                line = bufferedReader.readLine();
-            }
-            bufferedReader.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return str.toString();
-    }
-
 }
@@ -13,8 +13,9 @@ public class HttpcHelp {
 
     public void printHelpGet(){
 //        System.out.println("httpc help get");
-        System.out.println("usage: httpc get [-v] [-h key:value] URL");
+        System.out.println("usage: httpc get [-v] [-h key:value] URL [URL...]");
         System.out.println("Get executes a HTTP GET request for a given URL.");
+        System.out.println("Several URLs are fetched at once over a single session.");
         System.out.println("\t-v Prints the detail of the response such as protocol, status, and headers.");
         System.out.println("\t-h key:value Associates headers to HTTP Request with the format 'key:value'.");
     }
@@ -0,0 +1,66 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * MappedPacketSource serves a region of a file straight from a memory mapping.
+ * Every payload is a slice of the mapping, so the file is never copied onto the Java heap and
+ * binary content goes out byte for byte. Large files are mapped one region at a time.
+ */
+public class MappedPacketSource implements PacketSource {
+
+    // A whole number of packets, so that only the last packet of the file can be short.
+    private static final long REGION_SIZE = (long) UDPClient.DATA_CHUNK_SIZE * 65536;
+
+    private final FileChannel channel;
+    private final long start;
+    private final long size;
+    private long position;
+    private MappedByteBuffer region;
+
+    public MappedPacketSource(FileChannel channel, long start, long size) {
+        this.channel = channel;
+        this.start = start;
+        this.size = size;
+    }
+
+    public static MappedPacketSource open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        return new MappedPacketSource(channel, 0, channel.size());
+    }
+
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public ByteBuffer next() throws IOException {
+        if (position >= size) {
+            return null;
+        }
+        if (region == null || !region.hasRemaining()) {
+            long length = Math.min(REGION_SIZE, size - position);
+            region = channel.map(FileChannel.MapMode.READ_ONLY, start + position, length);
+        }
+        int length = Math.min(region.remaining(), UDPClient.DATA_CHUNK_SIZE);
+        ByteBuffer payload = region.duplicate();
+        payload.limit(region.position() + length);
+        region.position(region.position() + length);
+        position += length;
+        return payload.slice();
+    }
+
+    @Override
+    public long packetCount() {
+        return PacketSource.packetCount(size);
+    }
+
+    @Override
+    public void close() throws IOException {
+        // The mapping stays valid after the channel is closed, until it is garbage collected.
+        channel.close();
+    }
+}
@@ -0,0 +1,42 @@
+/**
+ * NewRenoCongestionControl is the AIMD window of TCP NewReno (RFC 6582), counted in packets.
+ * The window grows by one packet per acknowledged packet in slow start, by one packet per window
+ * after that, halves on a loss and falls back to one packet on a timeout.
+ */
+public class NewRenoCongestionControl implements CongestionControl {
+
+    private double window = INITIAL_WINDOW;
+    private double slowStartThreshold = Double.MAX_VALUE;
+
+    @Override
+    public int getWindow() {
+        return (int) window;
+    }
+
+    public double getSlowStartThreshold() {
+        return slowStartThreshold;
+    }
+
+    @Override
+    public void onAck(int packets, long smoothedRttNanos) {
+        for (int i = 0; i < packets; i++) {
+            if (window < slowStartThreshold) {
+                window += 1;
+            } else {
+                window += 1 / window;
+            }
+        }
+    }
+
+    @Override
+    public void onLoss() {
+        slowStartThreshold = Math.max(window / 2, MIN_WINDOW);
+        window = slowStartThreshold;
+    }
+
+    @Override
+    public void onTimeout() {
+        slowStartThreshold = Math.max(window / 2, MIN_WINDOW);
+        window = 1;
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * Pacer spreads the packets of a window over a round trip with a token bucket, instead of sending them
+ * back to back into the socket buffers of the kernel and the router. Tokens come in at GAIN times the
+ * congestion window per smoothed RTT, never faster than the maximum rate, and the bucket holds at most
+ * BURST of them. Before the first RTT sample only the maximum rate applies.
+ * Times are System.nanoTime values, the caller decides how to wait for the next token.
+ */
+public class Pacer {
+
+    // Faster than one window per RTT, or pacing would hold back the growth of slow start.
+    public static final double GAIN = 2.0;
+    public static final int BURST = 4;
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    // In packets per nanosecond, 0 for no limit.
+    private final double maxRate;
+    private double rate;
+    private double tokens = BURST;
+    private long lastRefillNanos = System.nanoTime();
+
+    /**
+     * Creates a pacer sending at most maxPacketsPerSecond, 0 leaves the rate to the window and RTT.
+     */
+    public Pacer(double maxPacketsPerSecond) {
+        if (maxPacketsPerSecond < 0) {
+            throw new IllegalArgumentException("Negative pacing rate: " + maxPacketsPerSecond);
+        }
+        this.maxRate = maxPacketsPerSecond / NANOS_PER_SECOND;
+        this.rate = maxRate;
+    }
+
+    /**
+     * Returns the pacer configured by the pace system property, the maximum rate in packets per
+     * second or 0 for none, or null when pacing is off.
+     */
+    static Pacer createDefault() {
+        String pace = System.getProperty("pace");
+        if (pace == null) {
+            return null;
+        }
+        return new Pacer(Double.parseDouble(pace));
+    }
+
+    /**
+     * Sets the rate from the congestion window, in packets, and the smoothed RTT, -1 if none yet.
+     */
+    public void setRate(int window, long smoothedRttNanos, long now) {
+        refill(now);
+        double paced = smoothedRttNanos > 0 ? GAIN * window / smoothedRttNanos : 0;
+        if (paced == 0 || (maxRate > 0 && maxRate < paced)) {
+            paced = maxRate;
+        }
+        rate = paced;
+    }
+
+    /**
+     * Returns the packets per second the pacer sends at, 0 when it is not limited.
+     */
+    public double getRate() {
+        return rate * NANOS_PER_SECOND;
+    }
+
+    /**
+     * Returns how long until the next packet may be sent, 0 if it may be sent now.
+     */
+    public long delayNanos(long now) {
+        refill(now);
+        if (tokens >= 1) {
+            return 0;
+        }
+        return (long) Math.ceil((1 - tokens) / rate);
+    }
+
+    /**
+     * Takes the token of a packet that is being sent.
+     */
+    public void onSend(long now) {
+        refill(now);
+        tokens -= 1;
+    }
+
+    private void refill(long now) {
+        if (rate == 0) {
+            tokens = BURST;
+        } else {
+            tokens = Math.min(BURST, tokens + (now - lastRefillNanos) * rate);
+        }
+        lastRefillNanos = now;
+    }
+}
@@ -12,12 +12,19 @@ public class Packet {
 
     public static final int MIN_LEN = 11;
     public static final int MAX_LEN = 1024;
+    // Set in the type of a packet that belongs to a stream of a multiplexed session,
+    // the id of the stream follows the fixed header as an unsigned short.
+    public static final int STREAM = 0x80;
+    public static final int STREAM_HEADER_LEN = 2;
+    public static final int MAX_STREAM_ID = 0xFFFF;
+    public static final int NO_STREAM = -1;
 
     private final int type;
     private final long sequenceNumber;
     private final InetAddress peerAddress;
     private final int peerPort;
     private final byte[] payload;
+    private final int peerAddressBits;
 
 
     public Packet(int type, long sequenceNumber, InetAddress peerAddress, int peerPort, byte[] payload) {
@@ -26,6 +33,7 @@ public class Packet {
         this.peerAddress = peerAddress;
         this.peerPort = peerPort;
         this.payload = payload;
+        this.peerAddressBits = (peerAddress != null) ? addressToInt(peerAddress) : 0;
     }
 
     public int getType() {
@@ -65,12 +73,56 @@ public class Packet {
      * Writes a raw presentation of the packet to byte buffer.
      * The order of the buffer should be set as BigEndian.
      */
-    private void write(ByteBuffer buf) {
+    public void writeTo(ByteBuffer buf) {
+        writeHeader(buf, type, sequenceNumber, peerAddressBits, peerPort);
+        buf.put(payload);
+    }
+
+    /**
+     * Writes only the fixed size header of a packet to the byte buffer.
+     * The payload, if any, is expected to follow directly after it.
+     */
+    public static void writeHeader(ByteBuffer buf, int type, long sequenceNumber, int peerAddress, int peerPort) {
         buf.put((byte) type);
         buf.putInt((int) sequenceNumber);
-        buf.put(peerAddress.getAddress());
+        buf.putInt(peerAddress);
         buf.putShort((short) peerPort);
+    }
+
+    /**
+     * Same as above for a packet of the given stream, or of no stream with NO_STREAM.
+     */
+    public static void writeHeader(ByteBuffer buf, int type, long sequenceNumber, int peerAddress, int peerPort, int streamId) {
+        if (streamId == NO_STREAM) {
+            writeHeader(buf, type, sequenceNumber, peerAddress, peerPort);
+            return;
+        }
+        writeHeader(buf, type | STREAM, sequenceNumber, peerAddress, peerPort);
+        buf.putShort((short) streamId);
+    }
+
+    /**
+     * Encodes a packet straight into a reusable buffer, without creating a Packet instance.
+     * The buffer is cleared first and is flipped and ready to be sent on return.
+     */
+    public static ByteBuffer encode(ByteBuffer buf, int type, long sequenceNumber, int peerAddress, int peerPort, byte[] payload) {
+        return encode(buf, type, sequenceNumber, peerAddress, peerPort, NO_STREAM, payload);
+    }
+
+    public static ByteBuffer encode(ByteBuffer buf, int type, long sequenceNumber, int peerAddress, int peerPort, int streamId, byte[] payload) {
+        buf.clear();
+        writeHeader(buf, type, sequenceNumber, peerAddress, peerPort, streamId);
         buf.put(payload);
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Returns the IPv4 address as a BigEndian int, the way it is laid out in the packet header.
+     */
+    public static int addressToInt(InetAddress address) {
+        byte[] raw = address.getAddress();
+        return ((raw[0] & 0xFF) << 24) | ((raw[1] & 0xFF) << 16) | ((raw[2] & 0xFF) << 8) | (raw[3] & 0xFF);
     }
 
     /**
@@ -78,8 +130,8 @@ public class Packet {
      * The returned buffer is flipped and ready for get operations.
      */
     public ByteBuffer toBuffer() {
-        ByteBuffer buf = ByteBuffer.allocate(MAX_LEN).order(ByteOrder.BIG_ENDIAN);
-        write(buf);
+        ByteBuffer buf = ByteBuffer.allocate(MIN_LEN + payload.length).order(ByteOrder.BIG_ENDIAN);
+        writeTo(buf);
         buf.flip();
         return buf;
     }
@@ -88,10 +140,7 @@ public class Packet {
      * Returns a raw representation of the packet.
      */
     public byte[] toBytes() {
-        ByteBuffer buf = toBuffer();
-        byte[] raw = new byte[buf.remaining()];
-        buf.get(raw);
-        return raw;
+        return toBuffer().array();
     }
 
     /**
@@ -122,10 +171,7 @@ public class Packet {
      * fromBytes creates a packet from the given array of bytes.
      */
     public static Packet fromBytes(byte[] bytes) throws IOException {
-        ByteBuffer buf = ByteBuffer.allocate(MAX_LEN).order(ByteOrder.BIG_ENDIAN);
-        buf.put(bytes);
-        buf.flip();
-        return fromBuffer(buf);
+        return fromBuffer(ByteBuffer.wrap(bytes).order(ByteOrder.BIG_ENDIAN));
     }
 
     @Override
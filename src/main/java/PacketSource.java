@@ -0,0 +1,36 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * PacketSource hands out the payloads of a transfer one DATA packet at a time.
+ * Payloads are only produced when the send window reaches them and are released once acknowledged,
+ * so the memory held by a transfer is bounded by the window instead of the size of the transfer.
+ */
+public interface PacketSource extends Closeable {
+
+    /**
+     * Returns the payload of the next packet, at most DATA_CHUNK_SIZE bytes,
+     * or null once the source is exhausted.
+     */
+    ByteBuffer next() throws IOException;
+
+    /**
+     * Returns the number of packets of the whole transfer, or -1 when it is not known up front.
+     */
+    long packetCount();
+
+    /**
+     * Hands back a payload returned by next() once it is acknowledged and will not be sent again.
+     */
+    default void release(ByteBuffer payload) {
+    }
+
+    @Override
+    default void close() throws IOException {
+    }
+
+    static long packetCount(long bytes) {
+        return (bytes + UDPClient.DATA_CHUNK_SIZE - 1) / UDPClient.DATA_CHUNK_SIZE;
+    }
+}
@@ -0,0 +1,142 @@
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * PacketView is a flyweight over a raw packet sitting in a ByteBuffer.
+ * The fields are read in place, so a single view can be re-used for every datagram received
+ * without allocating a Packet, a host array or a payload copy.
+ * The view is only valid until the underlying buffer is overwritten by the next receive.
+ * A packet of a stream is read the same way, its type without the STREAM flag and its payload after
+ * the id of the stream.
+ */
+public class PacketView {
+
+    private static final int TYPE_OFFSET = 0;
+    private static final int SEQUENCE_OFFSET = 1;
+    private static final int ADDRESS_OFFSET = 5;
+    private static final int PORT_OFFSET = 9;
+    private static final int STREAM_OFFSET = Packet.MIN_LEN;
+
+    private ByteBuffer buf;
+    private int start;
+    private int end;
+    private int headerLength;
+
+    /**
+     * Points the view at the packet between the position and the limit of the given buffer.
+     * The buffer should be flipped and in BigEndian, like the one passed to Packet.fromBuffer.
+     */
+    public PacketView wrap(ByteBuffer buf) throws IOException {
+        int length = buf.remaining();
+        if (length < Packet.MIN_LEN || length > Packet.MAX_LEN) {
+            throw new IOException("Invalid length" + buf);
+        }
+        boolean stream = (buf.get(buf.position() + TYPE_OFFSET) & Packet.STREAM) != 0;
+        if (stream && length < Packet.MIN_LEN + Packet.STREAM_HEADER_LEN) {
+            throw new IOException("Invalid length" + buf);
+        }
+        this.buf = buf.order(ByteOrder.BIG_ENDIAN);
+        this.start = buf.position();
+        this.end = buf.limit();
+        this.headerLength = stream ? Packet.MIN_LEN + Packet.STREAM_HEADER_LEN : Packet.MIN_LEN;
+        return this;
+    }
+
+    public int getType() {
+        return Byte.toUnsignedInt(buf.get(start + TYPE_OFFSET)) & ~Packet.STREAM;
+    }
+
+    /**
+     * Returns the id of the stream the packet belongs to, or Packet.NO_STREAM.
+     */
+    public int getStreamId() {
+        return headerLength == Packet.MIN_LEN ? Packet.NO_STREAM : Short.toUnsignedInt(buf.getShort(start + STREAM_OFFSET));
+    }
+
+    public long getSequenceNumber() {
+        return Integer.toUnsignedLong(buf.getInt(start + SEQUENCE_OFFSET));
+    }
+
+    /**
+     * Returns the peer address as a BigEndian int, see Packet.addressToInt.
+     */
+    public int getPeerAddressBits() {
+        return buf.getInt(start + ADDRESS_OFFSET);
+    }
+
+    /**
+     * Allocates an InetAddress for the peer, prefer getPeerAddressBits on the hot path.
+     */
+    public InetAddress getPeerAddress() throws IOException {
+        byte[] host = new byte[4];
+        for (int i = 0; i < host.length; i++) {
+            host[i] = buf.get(start + ADDRESS_OFFSET + i);
+        }
+        return Inet4Address.getByAddress(host);
+    }
+
+    public int getPeerPort() {
+        return Short.toUnsignedInt(buf.getShort(start + PORT_OFFSET));
+    }
+
+    public int getPayloadLength() {
+        return end - start - headerLength;
+    }
+
+    /**
+     * Returns a read-only view of the payload sharing the underlying buffer, no bytes are copied.
+     */
+    public ByteBuffer getPayload() {
+        ByteBuffer payload = buf.asReadOnlyBuffer();
+        payload.limit(end);
+        payload.position(start + headerLength);
+        return payload.slice();
+    }
+
+    /**
+     * Copies the payload into dst at the given offset and returns the number of bytes copied.
+     */
+    public int copyPayload(byte[] dst, int offset) {
+        int length = getPayloadLength();
+        int from = start + headerLength;
+        if (buf.hasArray()) {
+            System.arraycopy(buf.array(), buf.arrayOffset() + from, dst, offset, length);
+        } else {
+            for (int i = 0; i < length; i++) {
+                dst[offset + i] = buf.get(from + i);
+            }
+        }
+        return length;
+    }
+
+    public String payloadToString() {
+        byte[] payload = new byte[getPayloadLength()];
+        copyPayload(payload, 0);
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Materialises the view into a Packet that stays valid after the buffer is re-used.
+     * Packet has no stream, the id of the stream is left out.
+     */
+    public Packet toPacket() throws IOException {
+        byte[] payload = new byte[getPayloadLength()];
+        copyPayload(payload, 0);
+        return new Packet.Builder()
+                .setType(getType())
+                .setSequenceNumber(getSequenceNumber())
+                .setPeerAddress(getPeerAddress())
+                .setPortNumber(getPeerPort())
+                .setPayload(payload)
+                .create();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("#%d port=%d, size=%d", getSequenceNumber(), getPeerPort(), getPayloadLength());
+    }
+}
@@ -0,0 +1,127 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * ReassemblyBuffer puts the payloads of DATA packets back together as raw bytes, in sequence order.
+ * A packet that arrives in order is copied straight to the end of the message, one that arrives ahead
+ * of a gap waits in a ring of window slots until the gap is filled. The ring is only allocated once a
+ * packet arrives out of order, so a stream that sees no loss or reordering never pays for it. The message
+ * is a single byte array, sized from the packet count when the sender advertised it and doubled as needed
+ * otherwise, so text is decoded once at the end and characters split across two packets come out whole.
+ */
+public class ReassemblyBuffer {
+
+    private static final int MAX_PAYLOAD = Packet.MAX_LEN - Packet.MIN_LEN;
+
+    private final int window;
+    private byte[] ring;
+    // Payload length of every ring slot, -1 when empty.
+    private final int[] lengths;
+    private byte[] bytes;
+    private int size = 0;
+    private long nextSequenceNumber = 0;
+
+    /**
+     * Creates a buffer holding at most window packets ahead of a gap, for expectedPackets packets,
+     * -1 if the count is not known.
+     */
+    public ReassemblyBuffer(int window, long expectedPackets) {
+        this.window = window;
+        this.lengths = new int[window];
+        Arrays.fill(lengths, -1);
+        this.bytes = new byte[0];
+        expect(expectedPackets < 0 ? 1 : expectedPackets);
+    }
+
+    /**
+     * Makes room for the given number of packets of full size.
+     */
+    public void expect(long packets) {
+        ensureCapacity(packets * MAX_PAYLOAD);
+    }
+
+    /**
+     * Takes the payload of a DATA packet. Returns false for a duplicate or a packet beyond the window.
+     */
+    public boolean put(long seq, ByteBuffer payload) {
+        if (seq < nextSequenceNumber || seq - nextSequenceNumber >= window) {
+            return false;
+        }
+        int slot = (int) (seq % window);
+        if (seq != nextSequenceNumber) {
+            if (lengths[slot] >= 0) {
+                return false;
+            }
+            if (ring == null) {
+                ring = new byte[window * MAX_PAYLOAD];
+            }
+            lengths[slot] = payload.remaining();
+            payload.get(ring, slot * MAX_PAYLOAD, lengths[slot]);
+            return true;
+        }
+        append(payload.remaining());
+        payload.get(bytes, size - payload.remaining(), payload.remaining());
+        nextSequenceNumber++;
+        // move the packets that waited for this one
+        while (lengths[slot = (int) (nextSequenceNumber % window)] >= 0) {
+            append(lengths[slot]);
+            System.arraycopy(ring, slot * MAX_PAYLOAD, bytes, size - lengths[slot], lengths[slot]);
+            lengths[slot] = -1;
+            nextSequenceNumber++;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of packets received in order.
+     */
+    public long getNextSequenceNumber() {
+        return nextSequenceNumber;
+    }
+
+    /**
+     * Returns the number of bytes received in order.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns a read-only view of the bytes received in order.
+     */
+    public ByteBuffer contiguous() {
+        return ByteBuffer.wrap(bytes, 0, size).asReadOnlyBuffer();
+    }
+
+    /**
+     * Writes the bytes received in order to out, as they are.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(bytes, 0, size);
+    }
+
+    /**
+     * Decodes the bytes received in order.
+     */
+    public String decode(Charset charset) {
+        return new String(bytes, 0, size, charset);
+    }
+
+    private void append(int length) {
+        ensureCapacity((long) size + length);
+        size += length;
+    }
+
+    private void ensureCapacity(long capacity) {
+        if (capacity <= bytes.length) {
+            return;
+        }
+        if (capacity > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("Message of " + capacity + " bytes is too large to reassemble");
+        }
+        bytes = Arrays.copyOf(bytes, (int) Math.min(Integer.MAX_VALUE - 8, Math.max(capacity, 2L * bytes.length)));
+    }
+}
@@ -0,0 +1,350 @@
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * RequestHandler parses one HTTP request and builds its response.
+ * Every connection gets its own handler, so that concurrent requests do not share any state.
+ * Everything that touches the disk runs on the io executor, in the order it was asked for.
+ */
+public class RequestHandler implements RequestReceiver.Listener {
+
+    private static final Logger logger = LoggerFactory.getLogger(RequestHandler.class);
+    // Sent for the files whose type Files.probeContentType does not know.
+    static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+
+    private static volatile String pathToMainDirectory = "src/main/java/documents";
+    private static volatile DocumentIndex index;
+
+    private String httpVersion;
+    private String filePath;
+    private String requestSpecification = "";
+    private boolean debugging;
+    private String headers = "";
+    private long contentLength = 0;
+    private RequestType requestType;
+    private boolean badRequest;
+    private Status postStatus;
+    private String postContentType;
+    private FileChannel postTarget;
+    private long postStart;
+    private long bodyWritten = 0;
+    // Writes queued on io but not done yet.
+    private final AtomicInteger pendingWrites = new AtomicInteger();
+    private final Executor io;
+    private final ResponseCache cache = ResponseCache.shared();
+
+    public static String getDocumentRoot() {
+        return pathToMainDirectory;
+    }
+
+    /**
+     * Sets the directory every request path is relative to, for all the handlers.
+     */
+    public static void setDocumentRoot(String directory) {
+        pathToMainDirectory = directory;
+    }
+
+    /**
+     * Checks requests against the given index of the document root, or against the file system when null.
+     */
+    public static void setDocumentIndex(DocumentIndex documentIndex) {
+        index = documentIndex;
+    }
+
+    /**
+     * Returns what the index knows about a path, or reads it from the file system when the index does
+     * not cover it. Null if there is nothing there.
+     */
+    private static DocumentIndex.Entry describe(Path path) {
+        DocumentIndex documents = index;
+        if (documents != null && documents.covers(path)) {
+            return documents.lookup(path);
+        }
+        return DocumentIndex.read(path);
+    }
+
+    private static void refresh(Path path) {
+        DocumentIndex documents = index;
+        if (documents != null && documents.covers(path)) {
+            documents.refresh(path);
+        }
+    }
+
+    /**
+     * Does the disk I/O on the calling thread.
+     */
+    public RequestHandler() {
+        this(Runnable::run);
+    }
+
+    /**
+     * Does the disk I/O on io, which must run its tasks one at a time and in order.
+     */
+    public RequestHandler(Executor io) {
+        this.io = io;
+    }
+
+    /**
+     * Parses the header block as soon as it is in, and for a POST opens the target file so that
+     * the body is written to it while the rest of the request is still arriving.
+     */
+    @Override
+    public void onHeaders(RequestReceiver request, String head) {
+        try {
+            BufferedReader requestReader = new BufferedReader(new StringReader(head));
+            parseRequest(requestReader);
+            if (requestType == RequestType.POST) {
+                io.execute(this::openPostTarget);
+                request.streamBodyTo(new BodyWriter(), contentLength);
+            }
+        } catch (Exception e) {
+            logger.error("Could not parse the request", e);
+            badRequest = true;
+        }
+    }
+
+    /**
+     * Returns the number of body writes still waiting for the disk, each of one DATA packet at most.
+     */
+    public int getPendingWrites() {
+        return pendingWrites.get();
+    }
+
+    /**
+     * Builds the response. Blocks on the disk, so it is meant to be called on the io executor,
+     * after every write of the body that was queued there.
+     */
+    public PacketSource getResource() {
+        if (badRequest) {
+            return textResponse(requestSpecification + httpVersion + " " + Status.BAD_REQUEST.toString() + "\r\n" + headers + "\r\n");
+        }
+        return createResponse();
+    }
+
+    private String parseRequest(BufferedReader requestReader) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        String line = requestReader.readLine();
+        requestType = line.split(" ")[0].equalsIgnoreCase("GET") ? RequestType.GET : RequestType.POST;
+        filePath = line.split(" ")[1];
+        httpVersion = line.split(" ")[2];
+        long count = 0;
+        while (line != null) {
+            sb.append(line + "\n");
+            line = requestReader.readLine();
+
+            if (line == null || line.isEmpty()) break;
+
+            if (line.contains("Content-Length")) {
+                String len = line.split(":")[1].trim();
+                count = Long.valueOf(len);
+            }
+
+            if (!line.contains("Content-")) {
+                headers = headers + line + "\r\n";
+            }
+        }
+        contentLength = count;
+
+        requestSpecification = (debugging) ? sb.toString() + "\r\n" : "";
+        return sb.toString();
+    }
+
+    public PacketSource createResponse() {
+        if (requestType == RequestType.GET) {
+            return getResponse();
+        } else if (requestType == RequestType.POST) {
+            return postResponse();
+        } else
+            return textResponse(requestSpecification + httpVersion + " " + Status.BAD_REQUEST.toString() + "\r\n" + headers + "\r\n");
+    }
+
+    private static PacketSource textResponse(String response) {
+        return new BufferPacketSource(response.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Checks the target of a POST and opens it for appending, the body is then written to it
+     * by the BodyWriter as the packets come in.
+     */
+    private void openPostTarget() {
+        postStatus = Status.OK;
+        postContentType = "text/html";
+        if (filePath.equals("/") || filePath.equals("/..")) {
+            postStatus = Status.BAD_REQUEST;
+            return;
+        }
+        Path path = Paths.get(pathToMainDirectory + filePath);
+        try {
+            DocumentIndex.Entry parent = describe(path.getParent());
+            if (parent == null || !parent.isDirectory()) {
+                Files.createDirectories(path.getParent());
+                refresh(path.getParent());
+                parent = describe(path.getParent());
+            }
+            if (parent == null || !parent.isWritable()) {
+                postStatus = Status.FORBIDDEN;
+                return;
+            }
+            DocumentIndex.Entry target = describe(path);
+            postContentType = contentTypeOf(target != null ? target.getContentType() : Files.probeContentType(path));
+            cache.invalidate(path);
+            if (target == null) {
+                postStatus = Status.CREATED;
+            }
+            // Opened for reading too, so the appended region can be mapped for the response.
+            postTarget = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ);
+            postStart = postTarget.size();
+            postTarget.position(postStart);
+            refresh(path);
+        } catch (IOException e) {
+            postStatus = Status.BAD_REQUEST;
+        }
+    }
+
+    /**
+     * Builds the response to a POST once the body is on disk.
+     * The body echoed back is read from a mapping of the region just appended to the file.
+     */
+    public PacketSource postResponse() {
+        if (postStatus == Status.FORBIDDEN) {
+            return textResponse(requestSpecification + httpVersion + " " + Status.FORBIDDEN.toString() + "\r\n" + headers + "\r\n");
+        }
+        long written = bodyWritten;
+        if (postTarget != null) {
+            Path path = Paths.get(pathToMainDirectory + filePath);
+            // A GET that came in while the body was written may have cached the file half way.
+            cache.invalidate(path);
+            refresh(path);
+        }
+        String head = requestSpecification + httpVersion + " " + postStatus + "\r\n" + headers + "Content-Length: " + written + "\r\nContent-Type: " + postContentType + "\r\n\r\n";
+        if (postTarget == null) {
+            return textResponse(head);
+        }
+        return new CompositePacketSource(textResponse(head), new MappedPacketSource(postTarget, postStart, written));
+    }
+
+    /**
+     * Builds the response to a GET. The body of a file is not read here, it is sent
+     * from a memory mapping of the file behind the response headers.
+     */
+    public PacketSource getResponse() {
+        String body = "Home Directory";
+        String contentType = "text/html";
+        String contentDisposition = "inline";
+        if (!filePath.equals("/") && !filePath.equals("/..")) {
+            Path path = Paths.get(pathToMainDirectory + filePath);
+            try {
+                DocumentIndex.Entry entry = describe(path);
+                if (entry == null || entry.isDirectory()) throw new IOException();
+                BasicFileAttributes attrs = entry.getAttributes();
+                String head = requestSpecification + httpVersion + " " + Status.OK.toString() + "\r\n" + headers;
+                // Checked on every request, a file made unreadable keeps its modification time and size.
+                if (!entry.isReadable()) {
+                    return textResponse(requestSpecification + httpVersion + " " + Status.FORBIDDEN.toString() + "\r\n" + headers + "\r\n");
+                }
+                ResponseCache.Entry cached = cache.get(path, attrs);
+                if (cached != null) {
+                    return cached.newResponse(head);
+                }
+                contentType = contentTypeOf(entry.getContentType());
+                if (!contentType.equals("text/html") && !contentType.equals("text/plain")) {
+                    contentDisposition = "attachment";
+                }
+                cached = cache.load(path, attrs, fileHeaders(attrs.size(), contentType, contentDisposition));
+                if (cached != null) {
+                    return cached.newResponse(head);
+                }
+                MappedPacketSource file = MappedPacketSource.open(path);
+                return new CompositePacketSource(textResponse(head + fileHeaders(file.size(), contentType, contentDisposition)), file);
+            } catch (IOException e) {
+                return textResponse(requestSpecification + httpVersion + " " + Status.NOT_FOUND.toString() + "\r\n" + headers + "Content-Length: " + body.length() + "\r\nContent-Type: " + contentType + "\r\n\r\n" + "404 Not Found.");
+            }
+        }
+        return textResponse(requestSpecification + httpVersion + " " + Status.OK.toString() + "\r\n" + headers + "Content-Length: " + body.length() + "\r\nContent-Type: " + contentType + "\r\nContent-Disposition: " + contentDisposition + "\r\n\r\n" + body);
+    }
+
+    private static String contentTypeOf(String probed) {
+        return probed != null ? probed : DEFAULT_CONTENT_TYPE;
+    }
+
+    // The headers of a GET response that only depend on the file.
+    private static String fileHeaders(long size, String contentType, String contentDisposition) {
+        return "Content-Length: " + size + "\r\nContent-Type: " + contentType + "\r\nContent-Disposition: " + contentDisposition + "\r\n\r\n";
+    }
+
+    /**
+     * Closes the target of a POST once the writes queued before are done.
+     */
+    public void abort() {
+        io.execute(() -> {
+            if (postTarget != null) {
+                try {
+                    postTarget.close();
+                } catch (IOException e) {
+                    logger.error("Could not close the target of the POST", e);
+                }
+            }
+        });
+    }
+
+    private void writeBody(byte[] bytes) {
+        if (postTarget == null || !postTarget.isOpen()) {
+            return;
+        }
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(bytes);
+            while (buf.hasRemaining()) {
+                bodyWritten += postTarget.write(buf);
+            }
+        } catch (IOException e) {
+            logger.error("Could not write the body of the POST", e);
+            postStatus = Status.BAD_REQUEST;
+        }
+    }
+
+    /**
+     * BodyWriter takes the body from the RequestReceiver and queues the writes on the io executor.
+     * The payload is copied, since the receive buffer is reused as soon as write returns.
+     */
+    private class BodyWriter implements WritableByteChannel {
+
+        @Override
+        public int write(ByteBuffer src) {
+            byte[] bytes = new byte[src.remaining()];
+            src.get(bytes);
+            pendingWrites.incrementAndGet();
+            io.execute(() -> {
+                try {
+                    writeBody(bytes);
+                } finally {
+                    pendingWrites.decrementAndGet();
+                }
+            });
+            return bytes.length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
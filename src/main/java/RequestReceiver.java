@@ -0,0 +1,135 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+/**
+ * RequestReceiver puts the DATA packets of a request back in order as they arrive.
+ * The header block is handed to the listener as soon as the in-order prefix contains it, and the
+ * body is then written straight to the channel chosen by the listener, packet by packet.
+ * Only the header block and the packets that arrived ahead of a gap are ever held in memory.
+ */
+public class RequestReceiver {
+
+    public interface Listener {
+        /**
+         * Called once with the header block of the request, without the blank line ending it.
+         * The listener may call streamBodyTo to receive the body, otherwise the body is dropped.
+         */
+        void onHeaders(RequestReceiver receiver, String head) throws IOException;
+    }
+
+    private final Listener listener;
+    private final HashMap<Long, byte[]> outOfOrder = new HashMap<>();
+    private final ByteArrayOutputStream head = new ByteArrayOutputStream();
+    private long nextSequenceNumber = 0;
+    private boolean headerParsed = false;
+    private WritableByteChannel body;
+    private long bodyRemaining = 0;
+    private long bodyWritten = 0;
+
+    public RequestReceiver(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sends the next bodyLength bytes following the header block to target.
+     */
+    public void streamBodyTo(WritableByteChannel target, long bodyLength) {
+        this.body = target;
+        this.bodyRemaining = bodyLength;
+    }
+
+    public long getBodyWritten() {
+        return bodyWritten;
+    }
+
+    public boolean isHeaderParsed() {
+        return headerParsed;
+    }
+
+    /**
+     * Takes the payload of a DATA packet. Packets ahead of a gap are copied until the gap is filled,
+     * duplicates are ignored.
+     */
+    public void receive(PacketView packet) throws IOException {
+        long seq = packet.getSequenceNumber();
+        if (seq < nextSequenceNumber || outOfOrder.containsKey(seq)) {
+            return;
+        }
+        if (seq != nextSequenceNumber) {
+            byte[] payload = new byte[packet.getPayloadLength()];
+            packet.copyPayload(payload, 0);
+            outOfOrder.put(seq, payload);
+            return;
+        }
+        deliver(packet.getPayload());
+        byte[] next;
+        while ((next = outOfOrder.remove(nextSequenceNumber)) != null) {
+            deliver(ByteBuffer.wrap(next));
+        }
+    }
+
+    /**
+     * Called once the whole request is in. A request without a blank line is all header block.
+     */
+    public void finish() throws IOException {
+        if (!headerParsed) {
+            headerParsed = true;
+            listener.onHeaders(this, new String(head.toByteArray(), StandardCharsets.UTF_8));
+        }
+        outOfOrder.clear();
+    }
+
+    private void deliver(ByteBuffer payload) throws IOException {
+        nextSequenceNumber += 1;
+        if (!headerParsed) {
+            int searchFrom = Math.max(0, head.size() - 3);
+            while (payload.hasRemaining()) {
+                head.write(payload.get());
+            }
+            byte[] bytes = head.toByteArray();
+            int end = findBlankLine(bytes, searchFrom);
+            if (end < 0) {
+                return;
+            }
+            headerParsed = true;
+            int bodyStart = (bytes[end] == '\r') ? end + 4 : end + 2;
+            listener.onHeaders(this, new String(bytes, 0, end, StandardCharsets.UTF_8));
+            head.reset();
+            payload = ByteBuffer.wrap(bytes, bodyStart, bytes.length - bodyStart);
+        }
+        writeBody(payload);
+    }
+
+    private void writeBody(ByteBuffer payload) throws IOException {
+        if (body == null || bodyRemaining == 0) {
+            return;
+        }
+        if (payload.remaining() > bodyRemaining) {
+            payload.limit(payload.position() + (int) bodyRemaining);
+        }
+        while (payload.hasRemaining()) {
+            int written = body.write(payload);
+            bodyRemaining -= written;
+            bodyWritten += written;
+        }
+    }
+
+    /**
+     * Returns the index of the line break ending the header block, "\n\n" or "\r\n\r\n", or -1.
+     */
+    private static int findBlankLine(byte[] bytes, int from) {
+        for (int i = from; i + 1 < bytes.length; i++) {
+            if (bytes[i] == '\n' && bytes[i + 1] == '\n') {
+                return i;
+            }
+            if (i + 3 < bytes.length && bytes[i] == '\r' && bytes[i + 1] == '\n' && bytes[i + 2] == '\r' && bytes[i + 3] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
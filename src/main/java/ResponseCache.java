@@ -0,0 +1,201 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * ResponseCache keeps the files served most recently in memory, each with the response headers that only
+ * depend on the file, so a hot GET neither opens, maps nor probes it. Entries are keyed by path and hold
+ * the modification time and size the file had when read, a file changed since is read again, and a POST
+ * drops its target. Bodies are held in direct buffers and go out as slices of them, without copying. The
+ * headers of a response echo the request, so they are rendered for every response and share its first
+ * packet with the start of the body.
+ * The least recently used entries are evicted to stay within the byte budget, and a file larger than
+ * an eighth of it is not cached at all, it is served from a mapping.
+ */
+public class ResponseCache {
+
+    public static final long DEFAULT_CAPACITY = 64L << 20;
+
+    private static final ResponseCache SHARED = new ResponseCache(Long.getLong("cache.bytes", DEFAULT_CAPACITY));
+
+    // In access order, the eldest entry is the least recently used.
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long capacity;
+    private long size = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    public ResponseCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    public static ResponseCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * Sets the byte budget, 0 turns the cache off.
+     */
+    public synchronized ResponseCache setCapacity(long capacity) {
+        this.capacity = capacity;
+        evict();
+        return this;
+    }
+
+    public synchronized long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the bytes held by the cached bodies.
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns the entry of the file if it was cached with the given attributes, or null.
+     */
+    public synchronized Entry get(Path path, BasicFileAttributes attrs) {
+        Entry entry = entries.get(key(path));
+        if (entry == null || !entry.matches(attrs)) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry;
+    }
+
+    /**
+     * Reads the file and caches it under the given attributes with the given headers.
+     * Returns null if the cache is off, if the file is too large for it, or if the file no longer has
+     * the size of the given attributes.
+     */
+    public Entry load(Path path, BasicFileAttributes attrs, String headers) throws IOException {
+        long capacity = getCapacity();
+        if (capacity == 0) {
+            return null;
+        }
+        ByteBuffer body;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // The open file is what is read, the attributes may be older.
+            long fileSize = channel.size();
+            if (fileSize != attrs.size() || fileSize > capacity / 8) {
+                return null;
+            }
+            body = ByteBuffer.allocateDirect((int) fileSize);
+            long read = 0;
+            for (int n; body.hasRemaining() && (n = channel.read(body)) >= 0; ) {
+                read += n;
+            }
+            if (read != fileSize) {
+                // Cut short while it was read.
+                return null;
+            }
+        }
+        body.flip();
+        Entry entry = new Entry(attrs, headers, body.asReadOnlyBuffer());
+        synchronized (this) {
+            Entry old = entries.put(key(path), entry);
+            if (old != null) {
+                size -= old.body.capacity();
+            }
+            size += body.capacity();
+            evict();
+        }
+        return entry;
+    }
+
+    /**
+     * Drops the file, e.g. before it is written to.
+     */
+    public synchronized void invalidate(Path path) {
+        Entry old = entries.remove(key(path));
+        if (old != null) {
+            size -= old.body.capacity();
+        }
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<Path, Entry>> eldest = entries.entrySet().iterator();
+        while (size > capacity && eldest.hasNext()) {
+            size -= eldest.next().getValue().body.capacity();
+            eldest.remove();
+        }
+    }
+
+    private static Path key(Path path) {
+        return path.toAbsolutePath().normalize();
+    }
+
+    /**
+     * Entry is a cached file: the headers that describe it and its body.
+     */
+    public static class Entry {
+
+        private final FileTime modified;
+        private final long fileSize;
+        private final String headers;
+        private final ByteBuffer body;
+
+        private Entry(BasicFileAttributes attrs, String headers, ByteBuffer body) {
+            this.modified = attrs.lastModifiedTime();
+            this.fileSize = attrs.size();
+            this.headers = headers;
+            this.body = body;
+        }
+
+        boolean matches(BasicFileAttributes attrs) {
+            return attrs.lastModifiedTime().equals(modified) && attrs.size() == fileSize;
+        }
+
+        public String getHeaders() {
+            return headers;
+        }
+
+        /**
+         * Returns a source of the body of its own, any number of responses can send it at once.
+         */
+        public PacketSource newBody() {
+            return new BufferPacketSource(body.duplicate());
+        }
+
+        /**
+         * Returns the response made of the given status line and request headers, the headers of the
+         * file and its body. The first packet is filled up with the start of the body, the rest of the
+         * body goes out as slices of the cached buffer.
+         */
+        public PacketSource newResponse(String head) {
+            byte[] rendered = (head + headers).getBytes(StandardCharsets.UTF_8);
+            if (rendered.length >= UDPClient.DATA_CHUNK_SIZE) {
+                return new CompositePacketSource(new BufferPacketSource(rendered), newBody());
+            }
+            int shared = Math.min(UDPClient.DATA_CHUNK_SIZE - rendered.length, body.remaining());
+            ByteBuffer first = ByteBuffer.allocate(rendered.length + shared);
+            first.put(rendered);
+            ByteBuffer start = body.duplicate();
+            start.limit(shared);
+            first.put(start);
+            first.flip();
+            ByteBuffer rest = body.duplicate();
+            rest.position(shared);
+            return new CompositePacketSource(new BufferPacketSource(first), new BufferPacketSource(rest));
+        }
+    }
+}
@@ -0,0 +1,368 @@
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.Selector;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+import static java.nio.channels.SelectionKey.OP_READ;
+import static java.util.Arrays.asList;
+
+/**
+ * Router stands in for the router of the assignment: a packet sent to it is forwarded to the peer
+ * address and port in its header, which are replaced by the address and port it came from.
+ * On the way it emulates a lossy link. Packets may be dropped, duplicated, delayed by a base delay
+ * plus a uniform jitter, held back further so that the next ones overtake them, and serialized
+ * at a bandwidth cap, behind which they queue up to a limit and are dropped past it. Every decision comes from one Random seeded by setSeed, and all packets are
+ * handled by a single thread, so the same traffic sees the same losses on every run.
+ *
+ * Run it standalone with main, or embed it in a test with start and close.
+ */
+public class Router implements Runnable, Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(Router.class);
+
+    public static final long DEFAULT_QUEUE_BYTES = 1 << 20;
+
+    private static final long NANOS_PER_MS = 1000000;
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    private static final int PEER_ADDRESS_OFFSET = 5;
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final PriorityQueue<Delivery> pending = new PriorityQueue<>();
+    private Random random = new Random(0);
+    private double dropRate = 0;
+    private double duplicateRate = 0;
+    private double reorderRate = 0;
+    private long delayNanos = 0;
+    private long jitterNanos = 0;
+    private long bytesPerSecond = 0;
+    private long queueBytes = DEFAULT_QUEUE_BYTES;
+    // When the emulated link is done sending what it was given, with a bandwidth cap.
+    private long linkFreeAtNanos = 0;
+    private long order = 0;
+    // Only written by the thread of the router.
+    private volatile long bytesReceived = 0;
+    private volatile long forwarded = 0;
+    private volatile long dropped = 0;
+    private volatile long duplicated = 0;
+    private volatile long reordered = 0;
+    private volatile long queueDropped = 0;
+    private Thread thread;
+
+    /**
+     * Binds the router to the given port on the loopback address, 0 picks a free port.
+     */
+    public Router(int port) throws IOException {
+        this(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    public Router(SocketAddress bindAddr) throws IOException {
+        this.channel = DatagramChannel.open();
+        channel.bind(bindAddr);
+        channel.configureBlocking(false);
+        this.selector = Selector.open();
+        channel.register(selector, OP_READ);
+    }
+
+    public Router setSeed(long seed) {
+        this.random = new Random(seed);
+        return this;
+    }
+
+    /**
+     * Sets the probability for a packet, of any type, to be dropped.
+     */
+    public Router setDropRate(double dropRate) {
+        this.dropRate = dropRate;
+        return this;
+    }
+
+    /**
+     * Sets the probability for a packet to be delivered twice.
+     */
+    public Router setDuplicateRate(double duplicateRate) {
+        this.duplicateRate = duplicateRate;
+        return this;
+    }
+
+    /**
+     * Sets the probability for a packet to be held back by another delay plus jitter, so that the
+     * packets sent after it arrive first.
+     */
+    public Router setReorderRate(double reorderRate) {
+        this.reorderRate = reorderRate;
+        return this;
+    }
+
+    /**
+     * Delays every packet by delayMs, plus or minus up to jitterMs picked uniformly.
+     */
+    public Router setDelay(double delayMs, double jitterMs) {
+        this.delayNanos = (long) (delayMs * NANOS_PER_MS);
+        this.jitterNanos = (long) (jitterMs * NANOS_PER_MS);
+        return this;
+    }
+
+    /**
+     * Caps the bandwidth of the link, packets queue up behind each other above it. 0 is no cap.
+     */
+    public Router setBandwidth(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * Sets the bytes that may wait for the link under a bandwidth cap, a packet that does not fit
+     * is dropped. 0 is no limit.
+     */
+    public Router setQueueLimit(long queueBytes) {
+        this.queueBytes = queueBytes;
+        return this;
+    }
+
+    public int getPort() throws IOException {
+        return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+    }
+
+    /**
+     * Returns the bytes of every packet the router was given, dropped ones included.
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public long getForwarded() {
+        return forwarded;
+    }
+
+    public long getDropped() {
+        return dropped;
+    }
+
+    public long getDuplicated() {
+        return duplicated;
+    }
+
+    public long getReordered() {
+        return reordered;
+    }
+
+    /**
+     * Returns the packets dropped because the queue of the link was full.
+     */
+    public long getQueueDropped() {
+        return queueDropped;
+    }
+
+    /**
+     * Runs the router on a daemon thread of its own.
+     */
+    public Router start() {
+        thread = new Thread(this, "router");
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    /**
+     * Forwards packets until the router is closed.
+     */
+    @Override
+    public void run() {
+        ByteBuffer buf = ByteBuffer.allocateDirect(Packet.MAX_LEN);
+        try {
+            logger.info("Router is listening at {}", channel.getLocalAddress());
+            while (channel.isOpen()) {
+                long now = System.nanoTime();
+                Delivery next;
+                while ((next = pending.peek()) != null && next.atNanos <= now) {
+                    pending.poll();
+                    channel.send(next.packet, next.to);
+                }
+                long wait = next == null ? 0 : next.atNanos - now;
+                if (next != null && wait < NANOS_PER_MS) {
+                    // Closer than the resolution of select.
+                    LockSupport.parkNanos(wait);
+                    selector.selectNow();
+                } else {
+                    selector.select(next == null ? 0 : (wait + NANOS_PER_MS - 1) / NANOS_PER_MS);
+                }
+                selector.selectedKeys().clear();
+                for (; ; ) {
+                    buf.clear();
+                    SocketAddress from = channel.receive(buf);
+                    if (from == null) {
+                        break;
+                    }
+                    buf.flip();
+                    bytesReceived += buf.remaining();
+                    route(buf, (InetSocketAddress) from);
+                }
+            }
+        } catch (IOException e) {
+            if (channel.isOpen()) {
+                logger.error("Router stopped", e);
+            }
+        }
+    }
+
+    private void route(ByteBuffer buf, InetSocketAddress from) throws IOException {
+        if (buf.remaining() < Packet.MIN_LEN || !(from.getAddress() instanceof Inet4Address)) {
+            logger.error("Dropping invalid packet from {}", from);
+            return;
+        }
+        byte[] peer = new byte[4];
+        buf.position(PEER_ADDRESS_OFFSET);
+        buf.get(peer);
+        int peerPort = buf.getShort() & 0xFFFF;
+        buf.rewind();
+        InetSocketAddress to = new InetSocketAddress(InetAddress.getByAddress(peer), peerPort);
+
+        // the receiver sees where the packet came from in place of where it goes
+        ByteBuffer packet = ByteBuffer.allocate(buf.remaining());
+        packet.put(buf);
+        packet.position(PEER_ADDRESS_OFFSET);
+        packet.put(from.getAddress().getAddress());
+        packet.putShort((short) from.getPort());
+        packet.rewind();
+
+        if (random.nextDouble() < dropRate) {
+            dropped++;
+            return;
+        }
+        if (!schedule(packet, to)) {
+            return;
+        }
+        forwarded++;
+        if (random.nextDouble() < duplicateRate && schedule(packet.duplicate(), to)) {
+            duplicated++;
+        }
+    }
+
+    /**
+     * Queues the packet for delivery, or drops it and returns false if the queue of the link is full.
+     */
+    private boolean schedule(ByteBuffer packet, InetSocketAddress to) {
+        long now = System.nanoTime();
+        long sent = now;
+        if (bytesPerSecond > 0) {
+            // What the link has yet to send is what is queued in front of the packet.
+            double queued = Math.max(0, linkFreeAtNanos - now) * (double) bytesPerSecond / NANOS_PER_SECOND;
+            if (queueBytes > 0 && queued + packet.remaining() > queueBytes) {
+                queueDropped++;
+                return false;
+            }
+            sent = Math.max(now, linkFreeAtNanos) + packet.remaining() * NANOS_PER_SECOND / bytesPerSecond;
+            linkFreeAtNanos = sent;
+        }
+        long delay = delayNanos + jitter();
+        if (random.nextDouble() < reorderRate) {
+            delay += delayNanos + jitterNanos + NANOS_PER_MS;
+            reordered++;
+        }
+        pending.add(new Delivery(sent + Math.max(0, delay), order++, packet, to));
+        return true;
+    }
+
+    private long jitter() {
+        return jitterNanos == 0 ? 0 : (long) ((random.nextDouble() * 2 - 1) * jitterNanos);
+    }
+
+    /**
+     * Stops forwarding, the packets still delayed are lost.
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        selector.wakeup();
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        selector.close();
+    }
+
+    private static class Delivery implements Comparable<Delivery> {
+        final long atNanos;
+        final long order;
+        final ByteBuffer packet;
+        final InetSocketAddress to;
+
+        Delivery(long atNanos, long order, ByteBuffer packet, InetSocketAddress to) {
+            this.atNanos = atNanos;
+            this.order = order;
+            this.packet = packet;
+            this.to = to;
+        }
+
+        @Override
+        public int compareTo(Delivery other) {
+            int c = Long.compare(atNanos, other.atNanos);
+            return c != 0 ? c : Long.compare(order, other.order);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        OptionParser parser = new OptionParser();
+        parser.acceptsAll(asList("port", "p"), "Listening port")
+                .withOptionalArg()
+                .defaultsTo("3000");
+        parser.accepts("bind", "Address to listen on, the loopback address by default")
+                .withOptionalArg();
+        parser.accepts("drop-rate", "Probability for a packet to be dropped")
+                .withOptionalArg()
+                .defaultsTo("0");
+        parser.accepts("dup-rate", "Probability for a packet to be delivered twice")
+                .withOptionalArg()
+                .defaultsTo("0");
+        parser.accepts("reorder-rate", "Probability for a packet to be overtaken by the next ones")
+                .withOptionalArg()
+                .defaultsTo("0");
+        parser.accepts("delay", "Delay of every packet, in ms")
+                .withOptionalArg()
+                .defaultsTo("0");
+        parser.accepts("jitter", "Largest change to the delay of a packet, in ms")
+                .withOptionalArg()
+                .defaultsTo("0");
+        parser.accepts("bandwidth", "Bandwidth of the link in bytes per second, 0 for no cap")
+                .withOptionalArg()
+                .defaultsTo("0");
+        parser.accepts("queue", "Bytes that may wait for the link under a bandwidth cap, 0 for no limit")
+                .withOptionalArg()
+                .defaultsTo(Long.toString(DEFAULT_QUEUE_BYTES));
+        parser.accepts("seed", "Seed of the random decisions")
+                .withOptionalArg()
+                .defaultsTo("0");
+
+        OptionSet opts = parser.parse(args);
+        int port = Integer.parseInt((String) opts.valueOf("port"));
+        InetAddress bindAddr = opts.has("bind") && opts.valueOf("bind") != null
+                ? InetAddress.getByName((String) opts.valueOf("bind"))
+                : InetAddress.getLoopbackAddress();
+        Router router = new Router(new InetSocketAddress(bindAddr, port))
+                .setDropRate(Double.parseDouble((String) opts.valueOf("drop-rate")))
+                .setDuplicateRate(Double.parseDouble((String) opts.valueOf("dup-rate")))
+                .setReorderRate(Double.parseDouble((String) opts.valueOf("reorder-rate")))
+                .setDelay(Double.parseDouble((String) opts.valueOf("delay")), Double.parseDouble((String) opts.valueOf("jitter")))
+                .setBandwidth(Long.parseLong((String) opts.valueOf("bandwidth")))
+                .setQueueLimit(Long.parseLong((String) opts.valueOf("queue")))
+                .setSeed(Long.parseLong((String) opts.valueOf("seed")));
+        router.run();
+    }
+}
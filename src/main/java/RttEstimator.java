@@ -0,0 +1,67 @@
+/**
+ * RttEstimator computes the retransmission timeout of a connection from its RTT samples (RFC 6298).
+ * Samples are taken with System.nanoTime and the smoothed values are kept in nanoseconds, so that
+ * sub-millisecond round trips on a local link do not round down to 0. The timeout is clamped between
+ * MIN_RTO_MS and MAX_RTO_MS and doubles on every timeout until the next valid sample.
+ * Samples of retransmitted packets must not be given to it (Karn's rule), the caller knows which
+ * transmission an ACK belongs to and this class does not.
+ */
+public class RttEstimator {
+
+    // The receiver may hold its SACK back for DELAYED_ACK_MS, a packet is not late before twice that.
+    public static final long MIN_RTO_MS = 2 * SelectiveAck.DELAYED_ACK_MS;
+    public static final long MAX_RTO_MS = 10000;
+    public static final long INITIAL_RTO_MS = 1000;
+    private static final long NANOS_PER_MS = 1000000;
+    private static final int MAX_BACKOFF = 16;
+
+    private long smoothedRttNanos = -1;
+    private long rttVarianceNanos = 0;
+    private long rtoNanos = INITIAL_RTO_MS * NANOS_PER_MS;
+    private int backoff = 0;
+
+    /**
+     * Takes the round trip time of a packet that was sent only once.
+     */
+    public void onSample(long rttNanos) {
+        if (rttNanos < 0) {
+            return;
+        }
+        if (smoothedRttNanos < 0) {
+            smoothedRttNanos = rttNanos;
+            rttVarianceNanos = rttNanos / 2;
+        } else {
+            long error = rttNanos - smoothedRttNanos;
+            // alpha = 1/8 and beta = 1/4
+            smoothedRttNanos += error >> 3;
+            rttVarianceNanos += (Math.abs(error) - rttVarianceNanos) >> 2;
+        }
+        rtoNanos = smoothedRttNanos + 4 * rttVarianceNanos;
+        backoff = 0;
+    }
+
+    /**
+     * Doubles the timeout after a retransmission timeout.
+     */
+    public void onTimeout() {
+        if (backoff < MAX_BACKOFF) {
+            backoff += 1;
+        }
+    }
+
+    public boolean hasSample() {
+        return smoothedRttNanos >= 0;
+    }
+
+    public long getSmoothedRttNanos() {
+        return smoothedRttNanos;
+    }
+
+    /**
+     * Returns the current retransmission timeout in ms, backoff included.
+     */
+    public long getRtoMillis() {
+        long rto = Math.max(MIN_RTO_MS, (rtoNanos + NANOS_PER_MS - 1) / NANOS_PER_MS);
+        return Math.min(MAX_RTO_MS, rto << backoff);
+    }
+}
@@ -0,0 +1,160 @@
+import java.nio.ByteBuffer;
+import java.util.function.LongConsumer;
+
+/**
+ * SelectiveAck tracks the DATA packets received so far and encodes them as a SACK packet.
+ * The sequence number of a SACK is the cumulative ACK, i.e. every packet below it was received.
+ * The payload starts with the receive window, an unsigned short: the sender may send the packets
+ * below cumulative + window. It is followed by a bitmap of the packets received above the cumulative ACK:
+ * bit i (least significant bit first) is set when packet cumulative + 1 + i was received.
+ * One SACK acknowledges many packets, so it is only sent every ACK_EVERY packets, when a packet arrives
+ * out of order (a new gap, or a retransmission filling one), on a duplicate, or when no more DATA
+ * arrived for DELAYED_ACK_MS. Only the packets within the receive window are kept track of, the ones
+ * below the cumulative ACK are forgotten.
+ */
+public class SelectiveAck {
+
+    public static final int ACK_EVERY = 8;
+    public static final long DELAYED_ACK_MS = 20;
+    public static final int DEFAULT_RECEIVE_WINDOW = SelectiveRepeatSender.MAX_WINDOW;
+    private static final int WINDOW_BYTES = 2;
+    private static final int MAX_BITMAP_BYTES = Packet.MAX_LEN - Packet.MIN_LEN - Packet.STREAM_HEADER_LEN - WINDOW_BYTES;
+
+    private final SlidingWindow received = new SlidingWindow(DEFAULT_RECEIVE_WINDOW);
+    private int receiveWindow = DEFAULT_RECEIVE_WINDOW;
+    private long highest = -1;
+    private int unacknowledged = 0;
+
+    /**
+     * Records a received DATA packet.
+     * Returns true when the SACK should be sent right away instead of being delayed.
+     * Packets beyond the receive window are not recorded, but still answered right away.
+     */
+    public boolean record(long seq) {
+        if (seq - received.getBase() >= received.capacity()) {
+            return true;
+        }
+        boolean duplicate = received.get(seq);
+        boolean outOfOrder = seq != highest + 1;
+        if (!duplicate) {
+            received.set(seq);
+            received.advance();
+        }
+        highest = Math.max(highest, seq);
+        unacknowledged++;
+        return duplicate || outOfOrder || unacknowledged >= ACK_EVERY;
+    }
+
+    public boolean isPending() {
+        return unacknowledged > 0;
+    }
+
+    public boolean hasReceived() {
+        return highest >= 0;
+    }
+
+    public boolean isReceived(long sequenceNumber) {
+        return received.get(sequenceNumber);
+    }
+
+    public long getCumulative() {
+        return received.getBase();
+    }
+
+    /**
+     * Sets the window advertised by the next SACK, in packets from the cumulative ACK.
+     */
+    public void setReceiveWindow(int receiveWindow) {
+        this.receiveWindow = Math.max(0, Math.min(receiveWindow, received.capacity()));
+    }
+
+    public int getReceiveWindow() {
+        return receiveWindow;
+    }
+
+    /**
+     * True when the packet is within the advertised window, the others must be dropped unrecorded.
+     */
+    public boolean isInWindow(long sequenceNumber) {
+        return sequenceNumber < received.getBase() + receiveWindow;
+    }
+
+    /**
+     * Encodes the SACK packet into buf, which is flipped and ready to be sent on return.
+     */
+    public ByteBuffer writeTo(ByteBuffer buf, int peerAddress, int peerPort) {
+        return writeTo(buf, peerAddress, peerPort, Packet.NO_STREAM);
+    }
+
+    /**
+     * Same as above for the DATA packets of the given stream.
+     */
+    public ByteBuffer writeTo(ByteBuffer buf, int peerAddress, int peerPort, int streamId) {
+        long cumulative = received.getBase();
+        buf.clear();
+        Packet.writeHeader(buf, UDPClient.SACK, cumulative, peerAddress, peerPort, streamId);
+        buf.putShort((short) receiveWindow);
+        int bits = (int) Math.min(highest - cumulative, MAX_BITMAP_BYTES * 8);
+        for (int i = 0; i < bits; i += 8) {
+            int b = 0;
+            for (int j = 0; j < 8 && i + j < bits; j++) {
+                if (received.get(cumulative + 1 + i + j)) {
+                    b |= 1 << j;
+                }
+            }
+            buf.put((byte) b);
+        }
+        buf.flip();
+        unacknowledged = 0;
+        return buf;
+    }
+
+    /**
+     * Returns the receive window advertised by a SACK.
+     */
+    public static int getReceiveWindow(PacketView sack) {
+        ByteBuffer payload = sack.getPayload();
+        return payload.remaining() < WINDOW_BYTES ? DEFAULT_RECEIVE_WINDOW : payload.getShort() & 0xFFFF;
+    }
+
+    /**
+     * Marks every packet from the base of acked up to limit (exclusive) acknowledged by the SACK in acked.
+     * Returns the number of packets that were newly acknowledged.
+     */
+    public static int markAcked(PacketView sack, SlidingWindow acked, long limit) {
+        return markAcked(sack, acked, limit, null);
+    }
+
+    /**
+     * Same as above, and hands every newly acknowledged sequence number to newlyAcked if not null.
+     */
+    public static int markAcked(PacketView sack, SlidingWindow acked, long limit, LongConsumer newlyAcked) {
+        int marked = 0;
+        long from = acked.getBase();
+        limit = Math.min(limit, from + acked.capacity());
+        long cumulative = sack.getSequenceNumber();
+        for (long seq = from; seq < Math.min(cumulative, limit); seq++) {
+            if (acked.set(seq)) {
+                marked++;
+                if (newlyAcked != null) {
+                    newlyAcked.accept(seq);
+                }
+            }
+        }
+        ByteBuffer bitmap = sack.getPayload();
+        bitmap.position(Math.min(bitmap.limit(), bitmap.position() + WINDOW_BYTES));
+        for (int i = 0; bitmap.hasRemaining(); i += 8) {
+            int b = bitmap.get() & 0xFF;
+            for (int j = 0; j < 8 && b != 0; j++, b >>>= 1) {
+                long seq = cumulative + 1 + i + j;
+                if ((b & 1) != 0 && seq >= from && seq < limit && acked.set(seq)) {
+                    marked++;
+                    if (newlyAcked != null) {
+                        newlyAcked.accept(seq);
+                    }
+                }
+            }
+        }
+        return marked;
+    }
+}
@@ -0,0 +1,609 @@
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongConsumer;
+
+import static java.nio.channels.SelectionKey.OP_READ;
+
+/**
+ * SelectiveRepeatSender is the sending half of the Selective-Repeat ARQ, shared by UDPClient and UDPServer.
+ * DATA packets are numbered from 0 and pulled from a PacketSource only when the window reaches them.
+ * Payloads are kept until they are acknowledged, so at most one window of them is held at a time, and
+ * the acknowledged packets are tracked in a SlidingWindow of the same size.
+ * When the channel is connected to the router, a packet is sent with a gathering write of a small header
+ * buffer followed by the payload, so payloads such as slices of a file mapping are never copied.
+ *
+ * Every packet has a retransmission deadline of its own on a TimingWheel, and only the packets whose
+ * deadline passed are sent again, so one late ACK does not resend the whole window.
+ * How many packets are in flight is decided by a CongestionControl, NewReno unless the cc system
+ * property names another one, and never more than MAX_WINDOW. With a Pacer, new packets of the window
+ * are spread over the RTT rather than sent back to back.
+ *
+ * The sender is driven by events: start, then onResponse for every response and onTimer for every timer
+ * of the wheel, until isDone. This lets one event loop run many senders on a shared channel and wheel,
+ * run() drives a single sender on a channel and wheel of its own.
+ */
+public class SelectiveRepeatSender implements Closeable, TimingWheel.Listener {
+
+    private static final Logger logger = LoggerFactory.getLogger(SelectiveRepeatSender.class);
+
+    public static final int MAX_WINDOW = 256;
+    // A packet is taken as lost once this many packets sent after it were acknowledged.
+    public static final int DUPLICATE_THRESHOLD = 3;
+    // Timer id of the next paced send, the retransmission timers are numbered by sequence number from 0.
+    public static final long PACING_TIMER = -2;
+    private static final long NANOS_PER_MS = 1000000;
+
+    private final PacketSource source;
+    private final int peerAddress;
+    private final int peerPort;
+    private int streamId = Packet.NO_STREAM;
+    private final DatagramChannel channel;
+    private final SocketAddress routerAddr;
+    private final int windowSize;
+    private final SlidingWindow acked;
+    // Indexed by seq % windowSize, which is unique for the packets in the window.
+    private final ByteBuffer[] payloads;
+    private final long[] deadlines;
+    // Retransmission timer of every slot, moved on every send and cancelled once the packet is acknowledged.
+    private final TimingWheel.Timer[] retransmitTimers;
+    private final long[] sentAtNanos;
+    private final boolean[] resent;
+    private final int[] retries;
+    private final ByteBuffer header = ByteBuffer.allocateDirect(Packet.MIN_LEN + Packet.STREAM_HEADER_LEN);
+    private final ByteBuffer[] gather = new ByteBuffer[2];
+    private ByteBuffer sendBuf;
+    private long nextSequenceNumber = 0;
+    private boolean exhausted = false;
+    private boolean failed = false;
+    private int maxTimeouts = 0;
+    private TimingWheel timers;
+    private TimingWheel.Listener timerListener = this;
+    private TimingWheel.Timer pacingTimer;
+    private ControlListener controlListener;
+    // The longest timeout any pending timer was armed with.
+    private long armedTimeout = 0;
+
+    private RttEstimator rtt = new RttEstimator();
+    private CongestionControl congestion = CongestionControl.createDefault();
+    // Losses of packets below it belong to the loss event that is being recovered from.
+    private long recoveryPoint = 0;
+    // The window advertised by the receiver, in packets from the head of the window.
+    private int receiveWindow = SelectiveAck.DEFAULT_RECEIVE_WINDOW;
+    private final LongConsumer onAcked = this::onAcked;
+    // Send time of the newest packet acknowledged by the response being handled, -1 if none.
+    private long newestAckedNanos = -1;
+    private Pacer pacer = Pacer.createDefault();
+    // True while packets of the window wait for the pacer.
+    private boolean paced = false;
+    private long pacingDeadline = 0;
+    private TransportMetrics metrics = TransportMetrics.client();
+    private long startedAtNanos;
+    private long ackedBytes = 0;
+    private boolean reported = false;
+
+    public SelectiveRepeatSender(PacketSource source, InetSocketAddress peer, DatagramChannel channel, SocketAddress routerAddr) {
+        this.source = source;
+        this.peerAddress = Packet.addressToInt(peer.getAddress());
+        this.peerPort = peer.getPort();
+        this.channel = channel;
+        this.routerAddr = routerAddr;
+        long count = source.packetCount();
+        if (count < 0) {
+            this.windowSize = MAX_WINDOW;
+        } else {
+            this.windowSize = (int) Math.max(1, Math.min(MAX_WINDOW, count));
+        }
+        this.acked = new SlidingWindow(windowSize);
+        this.payloads = new ByteBuffer[windowSize];
+        this.deadlines = new long[windowSize];
+        this.retransmitTimers = new TimingWheel.Timer[windowSize];
+        this.sentAtNanos = new long[windowSize];
+        this.resent = new boolean[windowSize];
+        this.retries = new int[windowSize];
+    }
+
+    /**
+     * Schedules the retransmission timers on a wheel shared with others. The wheel calls listener,
+     * which must pass the timer on to onTimer.
+     */
+    public SelectiveRepeatSender setTimers(TimingWheel timers, TimingWheel.Listener listener) {
+        this.timers = timers;
+        this.timerListener = listener;
+        return this;
+    }
+
+    /**
+     * Takes the packets other than ACK, SACK and NAK that run() receives.
+     */
+    public interface ControlListener {
+        void onControl(PacketView packet) throws IOException;
+    }
+
+    /**
+     * Passes the packets other than ACK, SACK and NAK that run() receives to listener, e.g. a SYN_ACK
+     * that arrives after the first DATA of a fast open.
+     */
+    public SelectiveRepeatSender setControlListener(ControlListener listener) {
+        this.controlListener = listener;
+        return this;
+    }
+
+    /**
+     * Counts the transfer in the given metrics, those of the client by default.
+     */
+    public SelectiveRepeatSender setMetrics(TransportMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * Sends the packets on a stream of a multiplexed session.
+     */
+    public SelectiveRepeatSender setStreamId(int streamId) {
+        this.streamId = streamId;
+        return this;
+    }
+
+    /**
+     * Gives up once a packet timed out the given number of times, 0 keeps trying forever.
+     */
+    public SelectiveRepeatSender setMaxTimeouts(int maxTimeouts) {
+        this.maxTimeouts = maxTimeouts;
+        return this;
+    }
+
+    /**
+     * Shares an estimator with the other exchanges of the connection, the sender has its own by default.
+     */
+    public SelectiveRepeatSender setRttEstimator(RttEstimator rtt) {
+        this.rtt = rtt;
+        return this;
+    }
+
+    public RttEstimator getRttEstimator() {
+        return rtt;
+    }
+
+    /**
+     * Sets the receive window advertised by the peer before the first SACK, in the SYN_ACK.
+     */
+    public SelectiveRepeatSender setReceiveWindow(int receiveWindow) {
+        this.receiveWindow = receiveWindow;
+        return this;
+    }
+
+    public SelectiveRepeatSender setCongestionControl(CongestionControl congestion) {
+        this.congestion = congestion;
+        return this;
+    }
+
+    public CongestionControl getCongestionControl() {
+        return congestion;
+    }
+
+    /**
+     * Paces the new packets of the window, null sends them back to back. Set by the pace system property.
+     */
+    public SelectiveRepeatSender setPacer(Pacer pacer) {
+        this.pacer = pacer;
+        return this;
+    }
+
+    /**
+     * Returns the sequence number following the last DATA packet, once the transfer is complete.
+     */
+    public long getNextSequenceNumber() {
+        return nextSequenceNumber;
+    }
+
+    public boolean isComplete() {
+        return exhausted && acked.getBase() == nextSequenceNumber;
+    }
+
+    /**
+     * True once every packet is acknowledged or the sender gave up.
+     */
+    public boolean isDone() {
+        return failed || isComplete();
+    }
+
+    /**
+     * Sends the first window.
+     */
+    public void start() throws IOException {
+        if (timers == null) {
+            timers = new TimingWheel();
+        }
+        startedAtNanos = System.nanoTime();
+        sendWindow();
+    }
+
+    /**
+     * Takes an ACK, SACK or NAK from the receiver and sends the packets that entered the window.
+     */
+    public void onResponse(PacketView response) throws IOException {
+        long seq = response.getSequenceNumber();
+        newestAckedNanos = -1;
+        int newlyAcked = 0;
+        switch (response.getType()) {
+            case UDPClient.NAK:
+                metrics.onNak();
+                if (seq < nextSequenceNumber && !acked.get(seq)) {
+                    metrics.onRetransmit();
+                    onLoss(seq);
+                    resent[slot(seq)] = true;
+                    sendPacket(seq);
+                }
+                break;
+            case UDPClient.ACK:
+                if (seq < nextSequenceNumber && acked.contains(seq) && acked.set(seq)) {
+                    onAcked(seq);
+                    newlyAcked = 1;
+                }
+                break;
+            case UDPClient.SACK:
+                newlyAcked = SelectiveAck.markAcked(response, acked, nextSequenceNumber, onAcked);
+                receiveWindow = SelectiveAck.getReceiveWindow(response);
+                break;
+            default:
+                break;
+        }
+        // slide the window past the acknowledged head, handing the payloads back to the source
+        long head = acked.getBase();
+        for (int i = acked.advance(); i > 0; i--, head++) {
+            int slot = slot(head);
+            ackedBytes += payloads[slot].remaining();
+            metrics.onAcked(payloads[slot].remaining());
+            source.release(payloads[slot]);
+            payloads[slot] = null;
+        }
+        if (newestAckedNanos >= 0) {
+            long sample = System.nanoTime() - newestAckedNanos;
+            rtt.onSample(sample);
+            metrics.onRttSample(sample);
+        }
+        if (isComplete() && !reported) {
+            reported = true;
+            metrics.onTransfer(ackedBytes, System.nanoTime() - startedAtNanos);
+        }
+        if (newlyAcked > 0) {
+            congestion.onAck(newlyAcked, rtt.getSmoothedRttNanos());
+            fastRetransmit();
+        }
+        if (2 * rtt.getRtoMillis() < armedTimeout) {
+            rearmTimers();
+        }
+        //send new packets in window
+        sendWindow();
+    }
+
+    /**
+     * Sends a packet again once its deadline passed without an ACK, or gives up once it timed out
+     * maxTimeouts times. Timers of packets that were acknowledged or sent again since are ignored.
+     */
+    @Override
+    public void onTimer(long seq, long deadline) throws IOException {
+        if (seq == PACING_TIMER) {
+            if (deadline == pacingDeadline) {
+                pacingDeadline = 0;
+                if (!isDone()) {
+                    sendWindow();
+                }
+            }
+            return;
+        }
+        if (isDone() || seq >= nextSequenceNumber || acked.get(seq)) {
+            return;
+        }
+        int slot = slot(seq);
+        if (deadlines[slot] != deadline) {
+            return;
+        }
+        if (maxTimeouts > 0 && retries[slot] >= maxTimeouts) {
+            logger.error("No response for packet #{} after {} timeouts, giving up.", seq, retries[slot]);
+            failed = true;
+            return;
+        }
+        retries[slot] += 1;
+        resent[slot] = true;
+        metrics.onTimeout();
+        metrics.onRetransmit();
+        if (seq == acked.getBase()) {
+            // Back off once per timeout of the oldest packet, like the single timer of TCP,
+            // rather than once for every packet of the window that expires with it.
+            rtt.onTimeout();
+            congestion.onTimeout();
+            recoveryPoint = nextSequenceNumber;
+        } else {
+            onLoss(seq);
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("No response for packet #{} after timeout. Sending it again", seq);
+        }
+        sendPacket(seq);
+    }
+
+    /**
+     * Sends the holes of the window again without waiting for their timers, once DUPLICATE_THRESHOLD
+     * packets above them were acknowledged. This is the three duplicate ACKs rule of TCP, counted on the
+     * SACK bitmap so that every hole of the window is found, not only the one at the cumulative ACK.
+     * A packet is sent this way once, if the copy is lost too its timer takes over.
+     */
+    private void fastRetransmit() throws IOException {
+        if (acked.getCount() < DUPLICATE_THRESHOLD) {
+            return;
+        }
+        int above = 0;
+        for (long seq = nextSequenceNumber - 1; seq >= acked.getBase(); seq--) {
+            if (acked.get(seq)) {
+                above++;
+                continue;
+            }
+            int slot = slot(seq);
+            if (above >= DUPLICATE_THRESHOLD && !resent[slot]) {
+                onLoss(seq);
+                resent[slot] = true;
+                metrics.onFastRetransmit();
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Packet #{} is missing, fast retransmit", seq);
+                }
+                sendPacket(seq);
+            }
+        }
+    }
+
+    /**
+     * Tells the congestion control about a lost packet, once for all the packets sent before the first
+     * loss was noticed, they were all sent with the window that caused it.
+     */
+    private void onLoss(long seq) {
+        if (seq >= recoveryPoint) {
+            congestion.onLoss();
+            recoveryPoint = nextSequenceNumber;
+        }
+    }
+
+    /**
+     * Keeps the newest send time among the packets acknowledged by a response. Packets that were sent
+     * more than once give no sample, the ACK may be for any of the copies (Karn's rule).
+     */
+    private void onAcked(long seq) {
+        int slot = slot(seq);
+        if (retransmitTimers[slot] != null) {
+            timers.cancel(retransmitTimers[slot]);
+        }
+        if (!resent[slot]) {
+            newestAckedNanos = Math.max(newestAckedNanos, sentAtNanos[slot]);
+        }
+    }
+
+    /**
+     * Sends the whole source through the router and returns once every packet is acknowledged,
+     * or once maxTimeouts is exceeded. The channel must not be read by anyone else meanwhile.
+     */
+    public void run() throws IOException {
+        ByteBuffer buf = BufferPool.shared().acquire();
+        try (Selector selector = Selector.open()) {
+            channel.configureBlocking(false);
+            channel.register(selector, OP_READ);
+            run(selector, buf);
+        } finally {
+            BufferPool.shared().release(buf);
+        }
+    }
+
+    /**
+     * Same as above on a selector the non-blocking channel is already registered with for OP_READ,
+     * receiving the responses into buf, so a client keeps both for the whole connection.
+     */
+    public void run(Selector selector, ByteBuffer buf) throws IOException {
+        PacketView response = new PacketView();
+        start();
+        while (!isDone()) {
+            long pacingDelay = paced ? pacer.delayNanos(System.nanoTime()) : -1;
+            if (pacingDelay >= 0 && pacingDelay < NANOS_PER_MS) {
+                // Closer than the resolution of the wheel and of select.
+                LockSupport.parkNanos(pacingDelay);
+                selector.selectNow();
+            } else {
+                // Try to receive a packet before the next retransmission is due.
+                long wait = Math.max(1, timers.nextDeadline() - System.currentTimeMillis());
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Waiting for the response - {}ms", wait);
+                }
+                selector.select(wait);
+            }
+            selector.selectedKeys().clear();
+
+            // Take every response that is queued before firing the timers, they may acknowledge
+            // the packets that are due.
+            for (; ; ) {
+                buf.clear();
+                SocketAddress router;
+                try {
+                    router = channel.receive(buf);
+                } catch (PortUnreachableException e) {
+                    // The router is not up, what was sent to it is lost and the timers send it again.
+                    continue;
+                }
+                if (router == null) {
+                    break;
+                }
+                buf.flip();
+                try {
+                    response.wrap(buf);
+                } catch (IOException e) {
+                    logger.error("Dropping invalid packet from {}", router);
+                    continue;
+                }
+                metrics.onReceived(response.getType());
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Received {} Packet #{} from router at {}", UDPServer.packetTypeToString(response.getType()), response.getSequenceNumber(), router);
+                }
+                int type = response.getType();
+                if (controlListener != null && type != UDPClient.ACK && type != UDPClient.SACK && type != UDPClient.NAK) {
+                    controlListener.onControl(response);
+                    continue;
+                }
+                onResponse(response);
+            }
+            if (paced && !isDone()) {
+                sendWindow();
+            }
+            timers.advance(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Sends the packets that entered the window, the others are sent again by their own timers.
+     * The window is the smaller of the congestion window and the receive window, within the capacity
+     * of the sender. With a closed receive window one packet is still sent once nothing is in flight,
+     * it probes the window until the receiver opens it again.
+     */
+    private void sendWindow() throws IOException {
+        int window = Math.min(Math.min(congestion.getWindow(), receiveWindow), windowSize);
+        if (window == 0 && acked.getBase() == nextSequenceNumber) {
+            window = 1;
+        }
+        long windowEnd = acked.getBase() + window;
+        if (pacer != null) {
+            pacer.setRate(congestion.getWindow(), rtt.getSmoothedRttNanos(), System.nanoTime());
+        }
+        paced = false;
+        while (!exhausted && nextSequenceNumber < windowEnd) {
+            if (pacer != null && pacer.delayNanos(System.nanoTime()) > 0) {
+                schedulePacedSend();
+                break;
+            }
+            ByteBuffer payload = source.next();
+            if (payload == null) {
+                exhausted = true;
+                break;
+            }
+            long seq = nextSequenceNumber++;
+            payloads[slot(seq)] = payload;
+            retries[slot(seq)] = 0;
+            resent[slot(seq)] = false;
+            if (pacer != null) {
+                pacer.onSend(System.nanoTime());
+            }
+            sendPacket(seq);
+        }
+    }
+
+    /**
+     * Resumes sendWindow once the pacer has a token. A timer on the wheel is enough for an event loop,
+     * run() waits for delays shorter than a tick with parkNanos.
+     */
+    private void schedulePacedSend() {
+        paced = true;
+        if (pacingDeadline == 0) {
+            long delay = (pacer.delayNanos(System.nanoTime()) + NANOS_PER_MS - 1) / NANOS_PER_MS;
+            pacingDeadline = System.currentTimeMillis() + Math.max(1, delay);
+            if (pacingTimer == null) {
+                pacingTimer = new TimingWheel.Timer(timerListener);
+            }
+            timers.schedule(pacingTimer, PACING_TIMER, pacingDeadline);
+        }
+    }
+
+    /**
+     * Pulls in the deadlines of the packets in flight once the timeout dropped well below the one they
+     * were sent with, the first window goes out with the initial timeout before any RTT sample.
+     */
+    private void rearmTimers() {
+        long timeout = rtt.getRtoMillis();
+        long now = System.currentTimeMillis();
+        long nowNanos = System.nanoTime();
+        for (long seq = acked.getBase(); seq < nextSequenceNumber; seq++) {
+            int slot = slot(seq);
+            long deadline = now + timeout - (nowNanos - sentAtNanos[slot]) / NANOS_PER_MS;
+            if (!acked.get(seq) && deadline < deadlines[slot]) {
+                armTimer(seq, deadline);
+            }
+        }
+        armedTimeout = timeout;
+    }
+
+    private void armTimer(long seq, long deadline) {
+        int slot = slot(seq);
+        if (retransmitTimers[slot] == null) {
+            retransmitTimers[slot] = new TimingWheel.Timer(timerListener);
+        }
+        deadlines[slot] = deadline;
+        timers.schedule(retransmitTimers[slot], seq, deadline);
+    }
+
+    private int slot(long seq) {
+        return (int) (seq % windowSize);
+    }
+
+    private void sendPacket(long seq) throws IOException {
+        if (channel.isConnected()) {
+            header.clear();
+            Packet.writeHeader(header, UDPClient.DATA, seq, peerAddress, peerPort, streamId);
+            header.flip();
+            gather[0] = header;
+            gather[1] = payloads[slot(seq)].duplicate();
+            try {
+                channel.write(gather);
+            } catch (PortUnreachableException e) {
+                // An ICMP error of an earlier datagram, this one is lost and goes again on its timer.
+                logger.debug("The router at {} is unreachable", routerAddr);
+            }
+            gather[1] = null;
+        } else {
+            if (sendBuf == null) {
+                sendBuf = BufferPool.shared().acquire();
+            }
+            sendBuf.clear();
+            Packet.writeHeader(sendBuf, UDPClient.DATA, seq, peerAddress, peerPort, streamId);
+            sendBuf.put(payloads[slot(seq)].duplicate());
+            sendBuf.flip();
+            channel.send(sendBuf, routerAddr);
+        }
+        // start timer
+        sentAtNanos[slot(seq)] = System.nanoTime();
+        long timeout = rtt.getRtoMillis();
+        long deadline = System.currentTimeMillis() + timeout;
+        armedTimeout = Math.max(armedTimeout, timeout);
+        armTimer(seq, deadline);
+        metrics.onSent(UDPClient.DATA);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Sending DATA Packet #{} to router at {}", seq, routerAddr);
+        }
+    }
+
+    /**
+     * Closes the source and hands the send buffer back to the pool.
+     */
+    @Override
+    public void close() throws IOException {
+        if (timers != null) {
+            // The wheel may be shared, leave nothing behind on it.
+            for (TimingWheel.Timer timer : retransmitTimers) {
+                if (timer != null) {
+                    timers.cancel(timer);
+                }
+            }
+            if (pacingTimer != null) {
+                timers.cancel(pacingTimer);
+            }
+        }
+        BufferPool.shared().release(sendBuf);
+        sendBuf = null;
+        Arrays.fill(payloads, null);
+        source.close();
+    }
+}
@@ -0,0 +1,230 @@
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+import static java.nio.channels.SelectionKey.OP_READ;
+
+/**
+ * ServerEventLoop is one thread of the server, with its own channel, selector and sessions.
+ * Every session is pinned to one loop by a hash of the client address and port. A packet that arrives
+ * on the channel of another loop is copied and handed over to its owner through a lock-free queue,
+ * so the state of a session is only ever touched by the thread of its loop.
+ */
+public class ServerEventLoop implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ServerEventLoop.class);
+
+    private final int index;
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final WorkerPool workers;
+    private final byte[] synAckPayload;
+    // Every client talks to us through the router, the peer address and port in the packet identify it.
+    private final HashMap<Long, ServerSession> sessions = new HashMap<>();
+    private final Queue<Handoff> handoffs = new ConcurrentLinkedQueue<>();
+    private final TimingWheel timers = new TimingWheel();
+    private final PacketView receivedPacket = new PacketView();
+    private ByteBuffer sendBuf;
+    private ServerEventLoop[] loops = {this};
+
+    public ServerEventLoop(int index, DatagramChannel channel, ExecutorService executor) throws IOException {
+        this.index = index;
+        this.channel = channel;
+        this.selector = Selector.open();
+        this.workers = new WorkerPool(executor, selector);
+        int port = ((InetSocketAddress) channel.getLocalAddress()).getPort();
+        // The client sends the rest of the connection straight to the port of the loop owning it,
+        // and no further ahead than the receive window until the first SACK.
+        this.synAckPayload = ("SYN_ACK " + port + " " + SelectiveAck.DEFAULT_RECEIVE_WINDOW).getBytes(StandardCharsets.UTF_8);
+        channel.configureBlocking(false);
+        channel.register(selector, OP_READ);
+    }
+
+    /**
+     * Sets the loops of the server, in the same order on every loop.
+     */
+    public void setLoops(ServerEventLoop[] loops) {
+        this.loops = loops;
+    }
+
+    public DatagramChannel getChannel() {
+        return channel;
+    }
+
+    public WorkerPool getWorkers() {
+        return workers;
+    }
+
+    public ByteBuffer getSendBuffer() {
+        return sendBuf;
+    }
+
+    /**
+     * Returns the wheel holding the timers of every session on this loop.
+     */
+    public TimingWheel getTimers() {
+        return timers;
+    }
+
+    public byte[] getSynAckPayload() {
+        return synAckPayload;
+    }
+
+    /**
+     * Wakes the loop up, e.g. to notice that its channel was closed.
+     */
+    public void wakeup() {
+        selector.wakeup();
+    }
+
+    /**
+     * Returns the index of the loop that owns the connection with the given key.
+     */
+    static int owner(long key, int loops) {
+        // Mixed first, clients behind one host differ only in the low bits of the port.
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) ((h >>> 32) % loops);
+    }
+
+    static long sessionKey(int peerAddress, int peerPort) {
+        return ((peerAddress & 0xFFFFFFFFL) << 16) | peerPort;
+    }
+
+    /**
+     * Demultiplexes packets to the sessions and fires their timers until the channel is closed.
+     */
+    @Override
+    public void run() {
+        ByteBuffer buf = BufferPool.shared().acquire();
+        sendBuf = BufferPool.shared().acquire();
+        try {
+            logger.info("EchoServer is listening at {}", channel.getLocalAddress());
+            while (channel.isOpen()) {
+                long deadline = timers.nextDeadline();
+                selector.select(deadline == Long.MAX_VALUE ? 0 : Math.max(1, deadline - System.currentTimeMillis()));
+                selector.selectedKeys().clear();
+                workers.runCompletions();
+                Handoff handoff;
+                while ((handoff = handoffs.poll()) != null) {
+                    receivedPacket.wrap(handoff.packet);
+                    dispatch(receivedPacket, handoff.router);
+                }
+                // Drain everything that is queued before firing the timers, the responses may
+                // acknowledge the packets that are due.
+                for (; ; ) {
+                    buf.clear();
+                    SocketAddress router = channel.receive(buf);
+                    if (router == null) {
+                        break;
+                    }
+                    buf.flip();
+                    try {
+                        receivePacket(buf, router);
+                    } catch (IOException e) {
+                        logger.error("Dropping invalid packet from {}", router);
+                        continue;
+                    }
+                    ServerEventLoop owner = loops[owner(sessionKey(receivedPacket.getPeerAddressBits(), receivedPacket.getPeerPort()), loops.length)];
+                    if (owner == this) {
+                        dispatch(receivedPacket, router);
+                    } else {
+                        owner.handOff(buf, router);
+                    }
+                }
+                timers.advance(System.currentTimeMillis());
+            }
+        } catch (IOException e) {
+            if (channel.isOpen()) {
+                logger.error("Event loop " + index + " stopped", e);
+            }
+        } finally {
+            for (ServerSession session : new ArrayList<>(sessions.values())) {
+                session.close();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                logger.error("Could not close the selector of event loop " + index, e);
+            }
+            BufferPool.shared().release(buf);
+            BufferPool.shared().release(sendBuf);
+        }
+    }
+
+    /**
+     * Queues a copy of a packet received by another loop. Safe to call from any thread.
+     */
+    private void handOff(ByteBuffer packet, SocketAddress router) {
+        ByteBuffer copy = ByteBuffer.allocate(packet.remaining());
+        copy.put(packet);
+        copy.flip();
+        handoffs.add(new Handoff(copy, router));
+        selector.wakeup();
+    }
+
+    private void dispatch(PacketView packet, SocketAddress router) {
+        long key = sessionKey(packet.getPeerAddressBits(), packet.getPeerPort());
+        ServerSession session = sessions.get(key);
+        if (packet.getType() == UDPClient.SYN && session != null && !session.acceptsSyn(packet)) {
+            session.close();
+            session = null;
+        }
+        if (session == null && packet.getType() != UDPClient.SYN && packet.getType() != UDPClient.DATA) {
+            // Left over from a connection that is already gone.
+            return;
+        }
+        try {
+            if (session == null) {
+                InetSocketAddress clientAddr = new InetSocketAddress(packet.getPeerAddress(), packet.getPeerPort());
+                session = new ServerSession(clientAddr, this, router);
+                sessions.put(key, session);
+                logger.info("New connection from {} on loop {}, {} open", clientAddr, index, sessions.size());
+            }
+            session.onPacket(packet);
+        } catch (IOException e) {
+            // Only this connection is lost, the loop goes on serving the others.
+            logger.error("Closing the connection of port {}", packet.getPeerPort(), e);
+            if (session != null) {
+                session.close();
+            }
+        }
+    }
+
+    /**
+     * Drops a session from the table, called by the session when it closes.
+     */
+    void sessionClosed(ServerSession session) {
+        sessions.remove(session.getKey(), session);
+    }
+
+    private void receivePacket(ByteBuffer buf, SocketAddress router) throws IOException {
+        //read the packet in place from the buffer
+        receivedPacket.wrap(buf);
+        TransportMetrics.server().onReceived(receivedPacket.getType());
+        if (logger.isDebugEnabled()) {
+            logger.debug("Received {} Packet #{} from router at {}", UDPServer.packetTypeToString(receivedPacket.getType()), receivedPacket.getSequenceNumber(), router);
+        }
+    }
+
+    private static class Handoff {
+        final ByteBuffer packet;
+        final SocketAddress router;
+
+        Handoff(ByteBuffer packet, SocketAddress router) {
+            this.packet = packet;
+            this.router = router;
+        }
+    }
+}
@@ -0,0 +1,285 @@
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * ServerSession is the state of one client connection on the server.
+ * A client of the original protocol sends one request on it, which is served as a single stream and
+ * closes the session. A client that opens the session with STREAMS_SYN keeps it for many requests,
+ * each on a stream of its own, until it sends a FIN outside of any stream. Any session whose client goes
+ * quiet for IDLE_TIMEOUT_MS is closed. The streams of a session share its RTT estimate.
+ * A session is established by a SYN, valid FastOpen token or none, or by the ACK of the handshake. Until
+ * then it takes the request of a fast open but does not serve it, and it is closed if the handshake does
+ * not complete within HANDSHAKE_TIMEOUT_MS, e.g. for stray DATA that came without a SYN.
+ * Sessions are driven by the ServerEventLoop they are pinned to, through onPacket and onTimer.
+ */
+public class ServerSession implements TimingWheel.Listener {
+
+    private static final Logger logger = LoggerFactory.getLogger(ServerSession.class);
+
+    // Payload of the SYN of a client that opens a multiplexed session.
+    public static final String STREAMS_SYN = "SYN STREAMS";
+    // Most streams a session runs at once, the DATA of further streams is dropped until one ends.
+    public static final int MAX_STREAMS = 64;
+    static final long IDLE_TIMEOUT_MS = 30000;
+    static final long HANDSHAKE_TIMEOUT_MS = 10000;
+    // Timer id of the idle and handshake timeouts, the streams have timers of their own.
+    private static final long IDLE_TIMER = -1;
+
+    private final ServerEventLoop loop;
+    private final long key;
+    private final InetSocketAddress clientAddr;
+    private final int clientAddress;
+    private final int clientPort;
+    private final DatagramChannel channel;
+    private final SocketAddress routerAddr;
+    private final ByteBuffer sendBuf;
+    private final byte[] synAckPayload;
+    private byte[] tokenSynAckPayload;
+    private final RttEstimator rtt = new RttEstimator();
+    private final HashMap<Integer, ServerStream> streams = new HashMap<>();
+    // The ids of the streams that ended. A client numbers its streams upwards, so the window slides along.
+    private final SlidingWindow ended = new SlidingWindow(16 * MAX_STREAMS);
+    private boolean multiplexed = false;
+    private boolean established = false;
+    private boolean synReceived = false;
+    private long synSequenceNumber = 0;
+    private boolean closed = false;
+    private final long createdAt = System.currentTimeMillis();
+    private long lastPacketAt = createdAt;
+    private long idleDeadline = 0;
+    private final TimingWheel.Timer idleTimer = new TimingWheel.Timer(this);
+
+    public ServerSession(InetSocketAddress clientAddr, ServerEventLoop loop, SocketAddress routerAddr) {
+        this.loop = loop;
+        this.clientAddr = clientAddr;
+        this.clientAddress = Packet.addressToInt(clientAddr.getAddress());
+        this.clientPort = clientAddr.getPort();
+        this.key = ServerEventLoop.sessionKey(clientAddress, clientPort);
+        this.channel = loop.getChannel();
+        this.routerAddr = routerAddr;
+        this.sendBuf = loop.getSendBuffer();
+        this.synAckPayload = loop.getSynAckPayload();
+        this.idleDeadline = expiry();
+        loop.getTimers().schedule(idleTimer, IDLE_TIMER, idleDeadline);
+    }
+
+    public long getKey() {
+        return key;
+    }
+
+    public ServerEventLoop getLoop() {
+        return loop;
+    }
+
+    public InetSocketAddress getClientAddr() {
+        return clientAddr;
+    }
+
+    public SocketAddress getRouterAddr() {
+        return routerAddr;
+    }
+
+    public RttEstimator getRttEstimator() {
+        return rtt;
+    }
+
+    public boolean isMultiplexed() {
+        return multiplexed;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public boolean isEstablished() {
+        return established;
+    }
+
+    /**
+     * A SYN for a session that did not receive any request yet is a retransmission,
+     * for any other session it is the client starting over. A fast open SYN may come after the DATA behind
+     * it, its copies have the sequence number of the first one.
+     */
+    public boolean acceptsSyn(PacketView syn) {
+        if (!synReceived || (synSequenceNumber != 0 && syn.getSequenceNumber() == synSequenceNumber)) {
+            return true;
+        }
+        for (ServerStream stream : streams.values()) {
+            if (!stream.acceptsSyn()) {
+                return false;
+            }
+        }
+        return ended.getBase() == 0 && ended.getCount() == 0;
+    }
+
+    /**
+     * Handles a packet the router forwarded from this client, passing those of a stream on to it.
+     */
+    public void onPacket(PacketView packet) throws IOException {
+        lastPacketAt = System.currentTimeMillis();
+        if (packet.getType() == UDPClient.SYN) {
+            onSyn(packet);
+            return;
+        }
+        int id = packet.getStreamId();
+        if (id == Packet.NO_STREAM && packet.getType() == UDPClient.ACK) {
+            // The ACK of the handshake, the client acknowledges the response with SACKs.
+            establish();
+            return;
+        }
+        if (id == Packet.NO_STREAM && multiplexed) {
+            if (packet.getType() == UDPClient.FIN) {
+                logger.info("{} closed its session, {} streams open", clientAddr, streams.size());
+                close();
+            }
+            return;
+        }
+        if (id != Packet.NO_STREAM) {
+            setMultiplexed();
+        }
+        ServerStream stream = streams.get(id);
+        if (stream == null) {
+            if (id != Packet.NO_STREAM && !acceptsStream(packet, id)) {
+                return;
+            }
+            stream = new ServerStream(this, id);
+            streams.put(id, stream);
+        }
+        stream.onPacket(packet);
+    }
+
+    private void onSyn(PacketView syn) throws IOException {
+        String payload = syn.payloadToString();
+        if (payload.startsWith(STREAMS_SYN)) {
+            setMultiplexed();
+        }
+        synReceived = true;
+        synSequenceNumber = syn.getSequenceNumber();
+        String token = FastOpen.tokenOf(payload.trim().split(" "));
+        if (token == null || FastOpen.isValid(clientAddress, token)) {
+            establish();
+        } else {
+            logger.info("Fast open token of {} is not valid, waiting for the handshake", clientAddr);
+        }
+        // The SYN_ACK may have been lost, answer every SYN.
+        sendControl(UDPClient.SYN_ACK, syn.getSequenceNumber(), Packet.NO_STREAM, getSynAckPayload());
+    }
+
+    /**
+     * Returns the SYN_ACK payload of the loop followed by the token of the client.
+     */
+    private byte[] getSynAckPayload() {
+        if (tokenSynAckPayload == null) {
+            String token = " " + FastOpen.TOKEN + " " + FastOpen.issue(clientAddress);
+            tokenSynAckPayload = (new String(synAckPayload, StandardCharsets.US_ASCII) + token).getBytes(StandardCharsets.US_ASCII);
+        }
+        return tokenSynAckPayload;
+    }
+
+    private void establish() throws IOException {
+        if (established) {
+            return;
+        }
+        established = true;
+        for (ServerStream stream : new ArrayList<>(streams.values())) {
+            stream.onEstablished();
+        }
+    }
+
+    /**
+     * A stream starts with its first DATA packet. Packets of a stream that ended are left over from it,
+     * and a stream beyond MAX_STREAMS is started once the client sends it again.
+     */
+    private boolean acceptsStream(PacketView packet, int id) {
+        return packet.getType() == UDPClient.DATA && ended.contains(id) && !ended.get(id) && streams.size() < MAX_STREAMS;
+    }
+
+    private void setMultiplexed() {
+        multiplexed = true;
+    }
+
+    /**
+     * Returns the time the session expires at unless the client sends something, or completes the handshake.
+     */
+    private long expiry() {
+        long idle = lastPacketAt + IDLE_TIMEOUT_MS;
+        return established ? idle : Math.min(idle, createdAt + HANDSHAKE_TIMEOUT_MS);
+    }
+
+    /**
+     * Closes the session once its client sent nothing for IDLE_TIMEOUT_MS, or did not complete the
+     * handshake within HANDSHAKE_TIMEOUT_MS.
+     */
+    @Override
+    public void onTimer(long id, long deadline) {
+        if (closed || deadline != idleDeadline) {
+            return;
+        }
+        if (System.currentTimeMillis() >= expiry()) {
+            logger.info(established ? "Closing the idle session of {}" : "No handshake from {}, closing its session", clientAddr);
+            close();
+            return;
+        }
+        idleDeadline = expiry();
+        loop.getTimers().schedule(idleTimer, IDLE_TIMER, idleDeadline);
+    }
+
+    /**
+     * Called by a stream when it closes. The single stream of the original protocol takes the session with it.
+     */
+    void streamClosed(ServerStream stream) {
+        streams.remove(stream.getId(), stream);
+        if (stream.getId() == Packet.NO_STREAM) {
+            close();
+        } else if (ended.contains(stream.getId())) {
+            ended.set(stream.getId());
+            ended.advance();
+        }
+    }
+
+    /**
+     * Releases everything the session holds, the session is dropped from the table afterwards.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        loop.getTimers().cancel(idleTimer);
+        loop.sessionClosed(this);
+        for (ServerStream stream : new ArrayList<>(streams.values())) {
+            stream.close();
+        }
+    }
+
+    void sendSack(SelectiveAck sack, int streamId) throws IOException {
+        sack.writeTo(sendBuf, clientAddress, clientPort, streamId);
+        TransportMetrics.server().onSent(UDPClient.SACK);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Sending SACK Packet #{} of stream {} to router at {}", sack.getCumulative(), streamId, routerAddr);
+        }
+        send();
+    }
+
+    void sendControl(int type, long sequenceNumber, int streamId, byte[] payload) throws IOException {
+        Packet.encode(sendBuf, type, sequenceNumber, clientAddress, clientPort, streamId, payload);
+        TransportMetrics.server().onSent(type);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Sending {} Packet #{} of stream {} to router at {}", UDPServer.packetTypeToString(type), sequenceNumber, streamId, routerAddr);
+        }
+        send();
+    }
+
+    private void send() throws IOException {
+        channel.send(sendBuf, routerAddr);
+    }
+}
@@ -0,0 +1,284 @@
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executor;
+
+/**
+ * ServerStream is one request and its response on a client connection, with its own ARQ state for each
+ * direction. A connection of the original protocol carries a single stream without an id, and ends
+ * with it. A multiplexed session carries many streams at once, each packet naming its stream, and a
+ * stream ends once the client acknowledged its FIN, which leaves the session open for the next request.
+ * Building the response and writing a POST body to disk run on a lane of the worker pool of each stream,
+ * so a large response does not hold up the small ones next to it.
+ */
+public class ServerStream implements TimingWheel.Listener {
+
+    private static final Logger logger = LoggerFactory.getLogger(ServerStream.class);
+
+    private static final int MAX_TIMEOUTS = 6;
+    private static final long NO_DEADLINE = Long.MAX_VALUE;
+    // Timer ids of the delayed SACK and of the FIN waiting for its ACK, the sender numbers its timers
+    // by sequence number from 0 and uses SelectiveRepeatSender.PACING_TIMER.
+    private static final long SACK_TIMER = -1;
+    private static final long FIN_TIMER = -3;
+
+    enum State {
+        RECEIVING,
+        HANDLING,
+        SENDING,
+        FINISHING,
+        CLOSED
+    }
+
+    private final ServerSession session;
+    private final int id;
+    private final InetSocketAddress clientAddr;
+    private final ServerEventLoop loop;
+    private final WorkerPool workers;
+    private final Executor io;
+    private final SelectiveAck sack = new SelectiveAck();
+    private final RequestHandler handler;
+    private final RequestReceiver request;
+    private SelectiveRepeatSender sender;
+    private State state = State.RECEIVING;
+    private long sackDeadline = NO_DEADLINE;
+    private long finDeadline = NO_DEADLINE;
+    private final TimingWheel.Timer sackTimer = new TimingWheel.Timer(this);
+    private final TimingWheel.Timer finTimer = new TimingWheel.Timer(this);
+    private int finTimeouts = 0;
+    private boolean finPending = false;
+
+    public ServerStream(ServerSession session, int id) {
+        this.session = session;
+        this.id = id;
+        this.clientAddr = session.getClientAddr();
+        this.loop = session.getLoop();
+        this.workers = loop.getWorkers();
+        this.io = workers.newLane();
+        this.handler = new RequestHandler(io);
+        this.request = new RequestReceiver(handler);
+    }
+
+    /**
+     * Returns the id of the stream, Packet.NO_STREAM for the single stream of the original protocol.
+     */
+    public int getId() {
+        return id;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * True while the stream has not received any of its request.
+     */
+    public boolean acceptsSyn() {
+        return state == State.RECEIVING && !sack.hasReceived();
+    }
+
+    /**
+     * Handles a packet of this stream.
+     */
+    public void onPacket(PacketView packet) throws IOException {
+        switch (packet.getType()) {
+            case UDPClient.DATA:
+                if (state != State.RECEIVING) {
+                    break;
+                }
+                // The body waiting for the disk takes its room in the window, so a slow disk slows the client down.
+                sack.setReceiveWindow(SelectiveAck.DEFAULT_RECEIVE_WINDOW - handler.getPendingWrites());
+                if (!sack.isInWindow(packet.getSequenceNumber())) {
+                    // Dropped, the SACK tells the client how far it may go.
+                    sendSack();
+                    break;
+                }
+                request.receive(packet);
+                if (sack.record(packet.getSequenceNumber())) {
+                    sendSack();
+                } else if (sackDeadline == NO_DEADLINE) {
+                    // Hold back the SACK for a little while, so that it covers the next DATA packets too.
+                    sackDeadline = System.currentTimeMillis() + SelectiveAck.DELAYED_ACK_MS;
+                    loop.getTimers().schedule(sackTimer, SACK_TIMER, sackDeadline);
+                }
+                break;
+            case UDPClient.FIN:
+                if (state != State.RECEIVING) {
+                    break;
+                }
+                if (!session.isEstablished()) {
+                    // A fast open under a token the server did not accept, served once the handshake completes.
+                    finPending = true;
+                    break;
+                }
+                serveResource();
+                break;
+            case UDPClient.ACK:
+                if (state == State.FINISHING) {
+                    if (packet.getSequenceNumber() == sender.getNextSequenceNumber()) {
+                        close();
+                        logger.info("----END OF TRANSACTION---- {} stream {}", clientAddr, id);
+                    }
+                    break;
+                }
+                onResponse(packet);
+                break;
+            case UDPClient.SACK:
+            case UDPClient.NAK:
+                onResponse(packet);
+                break;
+            default:
+                session.sendControl(UDPClient.NAK, packet.getSequenceNumber(), id, UDPServer.EMPTY_PAYLOAD);
+                break;
+        }
+    }
+
+    /**
+     * Called by the session once its handshake completed, serves a request that was held until then.
+     */
+    void onEstablished() throws IOException {
+        if (finPending && state == State.RECEIVING) {
+            serveResource();
+        }
+    }
+
+    private void onResponse(PacketView packet) throws IOException {
+        if (state == State.SENDING) {
+            sender.onResponse(packet);
+            finishIfDone();
+        }
+    }
+
+    /**
+     * Fires the delayed SACK or sends the FIN again, the other timers are passed on to the sender.
+     * A send that fails closes this stream only, the timers of the others on the loop still fire.
+     */
+    @Override
+    public void onTimer(long timer, long deadline) {
+        try {
+            fire(timer, deadline);
+        } catch (IOException e) {
+            logger.error("Closing stream {} of {}", id, clientAddr, e);
+            close();
+        }
+    }
+
+    private void fire(long timer, long deadline) throws IOException {
+        if (timer == SACK_TIMER) {
+            if (state == State.RECEIVING && deadline == sackDeadline) {
+                sendSack();
+            }
+        } else if (timer == FIN_TIMER) {
+            if (state == State.FINISHING && deadline == finDeadline) {
+                if (++finTimeouts > MAX_TIMEOUTS) {
+                    logger.error("No ACK for the FIN of stream {} of {}, giving up.", id, clientAddr);
+                    close();
+                    return;
+                }
+                sendFin();
+            }
+        } else if (state == State.SENDING) {
+            sender.onTimer(timer, deadline);
+            finishIfDone();
+        }
+    }
+
+    private void serveResource() throws IOException {
+        request.finish();
+        state = State.HANDLING;
+        sackDeadline = NO_DEADLINE;
+        loop.getTimers().cancel(sackTimer);
+        // Queued behind the writes of the body, so the response sees the whole of it on disk.
+        io.execute(() -> {
+            PacketSource source;
+            try {
+                source = handler.getResource();
+            } catch (RuntimeException e) {
+                logger.error("Could not build the response for " + clientAddr, e);
+                workers.complete(this::close);
+                return;
+            }
+            workers.complete(() -> startSending(source));
+        });
+    }
+
+    private void startSending(PacketSource source) {
+        if (state != State.HANDLING) {
+            // The connection went away while the response was being built.
+            closeQuietly(source);
+            return;
+        }
+        logger.info("Sending resource to client {}.", clientAddr);
+        sender = new SelectiveRepeatSender(source, clientAddr, loop.getChannel(), session.getRouterAddr())
+                .setStreamId(id)
+                .setRttEstimator(session.getRttEstimator())
+                .setMaxTimeouts(MAX_TIMEOUTS)
+                .setMetrics(TransportMetrics.server())
+                .setTimers(loop.getTimers(), this);
+        state = State.SENDING;
+        try {
+            sender.start();
+            finishIfDone();
+        } catch (IOException e) {
+            logger.error("Could not send the response to {}", clientAddr, e);
+            close();
+        }
+    }
+
+    private void finishIfDone() throws IOException {
+        if (!sender.isDone()) {
+            return;
+        }
+        if (id == Packet.NO_STREAM || !sender.isComplete()) {
+            // The original protocol sends the FIN once and forgets the client.
+            session.sendControl(UDPClient.FIN, sender.getNextSequenceNumber(), id, UDPServer.FIN_PAYLOAD);
+            close();
+            logger.info("----END OF TRANSACTION---- {}", clientAddr);
+            return;
+        }
+        // The client needs the FIN to tell that the response is complete, it is sent until acknowledged.
+        state = State.FINISHING;
+        sendFin();
+    }
+
+    private void sendFin() throws IOException {
+        session.sendControl(UDPClient.FIN, sender.getNextSequenceNumber(), id, UDPServer.FIN_PAYLOAD);
+        finDeadline = System.currentTimeMillis() + session.getRttEstimator().getRtoMillis();
+        loop.getTimers().schedule(finTimer, FIN_TIMER, finDeadline);
+    }
+
+    /**
+     * Releases everything the stream holds and drops it from its session.
+     */
+    public void close() {
+        if (state == State.CLOSED) {
+            return;
+        }
+        state = State.CLOSED;
+        loop.getTimers().cancel(sackTimer);
+        loop.getTimers().cancel(finTimer);
+        session.streamClosed(this);
+        handler.abort();
+        if (sender != null) {
+            closeQuietly(sender);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            logger.error("Could not close {}", closeable, e);
+        }
+    }
+
+    private void sendSack() throws IOException {
+        sackDeadline = NO_DEADLINE;
+        loop.getTimers().cancel(sackTimer);
+        sack.setReceiveWindow(SelectiveAck.DEFAULT_RECEIVE_WINDOW - handler.getPendingWrites());
+        session.sendSack(sack, id);
+    }
+}
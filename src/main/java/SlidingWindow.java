@@ -0,0 +1,102 @@
+/**
+ * SlidingWindow is the set of packets acknowledged (or received) in a window of sequence numbers,
+ * a ring bitmap of a fixed number of bits that slides along as the head of the window is filled.
+ * Every packet below the base is taken as set, packets at base + capacity or beyond cannot be set yet.
+ * Memory stays at capacity bits whatever the length of the transfer, and the base and the number of
+ * packets set above it are kept up to date, so "is everything acknowledged" and "which is the first
+ * missing packet" are answered in constant time.
+ */
+public class SlidingWindow {
+
+    private final long[] words;
+    private final int mask;
+    private long base = 0;
+    // Bits set at or above the base.
+    private int count = 0;
+
+    /**
+     * Creates a window of at least the given capacity, rounded up to a power of two of at least 64.
+     */
+    public SlidingWindow(int capacity) {
+        int size = Math.max(Long.SIZE, Integer.highestOneBit(Math.max(1, capacity - 1)) << 1);
+        this.words = new long[size / Long.SIZE];
+        this.mask = size - 1;
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Returns the first sequence number that is not set, once advance was called.
+     */
+    public long getBase() {
+        return base;
+    }
+
+    /**
+     * Returns the number of packets set at or above the base.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * True when the packet can be set, it is neither below the base nor beyond the capacity.
+     */
+    public boolean contains(long seq) {
+        return seq >= base && seq - base <= mask;
+    }
+
+    public boolean get(long seq) {
+        if (seq < base) {
+            return true;
+        }
+        if (seq - base > mask) {
+            return false;
+        }
+        int bit = (int) (seq & mask);
+        return (words[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    /**
+     * Sets a packet within the window. Returns false if it was already set.
+     */
+    public boolean set(long seq) {
+        if (!contains(seq)) {
+            throw new IndexOutOfBoundsException("Packet #" + seq + " is outside of the window at " + base);
+        }
+        int bit = (int) (seq & mask);
+        long word = words[bit >>> 6];
+        if ((word & (1L << bit)) != 0) {
+            return false;
+        }
+        words[bit >>> 6] = word | (1L << bit);
+        count++;
+        return true;
+    }
+
+    /**
+     * Slides the base past the packets set at its head, a word at a time.
+     * Returns the number of packets the base moved by.
+     */
+    public int advance() {
+        int slid = 0;
+        while (count > 0) {
+            int bit = (int) (base & mask);
+            int shift = bit & 63;
+            // the run of set bits starting at the base, within this word
+            int run = Long.numberOfTrailingZeros(~(words[bit >>> 6] >>> shift));
+            if (run == 0) {
+                break;
+            }
+            run = Math.min(run, Long.SIZE - shift);
+            long cleared = run == Long.SIZE ? -1L : ((1L << run) - 1) << shift;
+            words[bit >>> 6] &= ~cleared;
+            base += run;
+            count -= run;
+            slid += run;
+        }
+        return slid;
+    }
+}
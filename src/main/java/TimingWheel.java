@@ -0,0 +1,241 @@
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * TimingWheel is a hashed timing wheel holding the timers of one event loop.
+ * A timer goes into the slot of the tick its deadline falls in, so scheduling is constant time,
+ * and advancing only looks at the slots of the ticks that passed. Deadlines further away than one
+ * turn of the wheel stay in their slot until the turn they are due.
+ *
+ * A Timer knows its place in its slot, so it is cancelled or moved to a new deadline in constant time.
+ * Owners keep one Timer per thing they time, e.g. per packet of the window, and schedule it again
+ * rather than allocating a new one for every send. The earliest deadline is kept up to date as timers
+ * come and go, and looked up again from the tick it was in once that timer leaves, so nextDeadline
+ * does not scan the wheel on every call.
+ */
+public class TimingWheel {
+
+    public interface Listener {
+        /**
+         * Called once the deadline of a timer scheduled with the given id has passed.
+         */
+        void onTimer(long id, long deadline) throws IOException;
+    }
+
+    public static final long DEFAULT_TICK_MS = 1;
+    public static final int DEFAULT_SLOTS = 1024;
+
+    private final long tickMs;
+    private final int mask;
+    private final ArrayList<Timer>[] slots;
+    private final ArrayList<Timer> expired = new ArrayList<>();
+    private long currentTick;
+    private int size = 0;
+    // Earliest deadline of the pending timers, looked up again by nextDeadline when stale.
+    private long earliest = Long.MAX_VALUE;
+    private boolean stale = false;
+    // No pending timer is in the slot of an earlier tick.
+    private long scanFrom = Long.MAX_VALUE;
+
+    public TimingWheel() {
+        this(DEFAULT_TICK_MS, DEFAULT_SLOTS, System.currentTimeMillis());
+    }
+
+    /**
+     * Creates a wheel of the given number of slots, a power of two, each covering tickMs.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimingWheel(long tickMs, int slotCount, long now) {
+        if (Integer.bitCount(slotCount) != 1) {
+            throw new IllegalArgumentException("The number of slots must be a power of two: " + slotCount);
+        }
+        this.tickMs = tickMs;
+        this.mask = slotCount - 1;
+        this.slots = new ArrayList[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            slots[i] = new ArrayList<>();
+        }
+        this.currentTick = now / tickMs;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Calls listener with id once deadline, in ms, has passed, on a timer of its own.
+     */
+    public void schedule(Listener listener, long id, long deadline) {
+        schedule(new Timer(listener), id, deadline);
+    }
+
+    /**
+     * Calls the listener of timer with id once deadline, in ms, has passed. A timer that is pending
+     * already is moved, it only fires for the last deadline it was given.
+     */
+    public void schedule(Timer timer, long id, long deadline) {
+        if (timer.index >= 0) {
+            remove(timer);
+        }
+        long tick = Math.max(deadline / tickMs, currentTick);
+        ArrayList<Timer> slot = slots[(int) (tick & mask)];
+        timer.id = id;
+        timer.deadline = deadline;
+        timer.tick = tick;
+        timer.index = slot.size();
+        slot.add(timer);
+        size += 1;
+        scanFrom = Math.min(scanFrom, tick);
+        if (!stale && deadline < earliest) {
+            earliest = deadline;
+        }
+    }
+
+    /**
+     * Stops timer from firing, if it is pending.
+     */
+    public void cancel(Timer timer) {
+        if (timer.index >= 0) {
+            remove(timer);
+        } else if (timer.index == Timer.EXPIRED) {
+            // Collected by advance but not fired yet.
+            timer.index = Timer.IDLE;
+        }
+    }
+
+    /**
+     * Returns the earliest deadline of the pending timers, or Long.MAX_VALUE when there is none.
+     */
+    public long nextDeadline() {
+        if (size == 0) {
+            return Long.MAX_VALUE;
+        }
+        if (stale) {
+            earliest = findEarliest();
+            stale = false;
+        }
+        return earliest;
+    }
+
+    /**
+     * Fires every timer whose deadline is at or before now.
+     */
+    public void advance(long now) throws IOException {
+        long target = now / tickMs;
+        if (target - currentTick > mask) {
+            // Idle for more than a turn, every slot may hold something due.
+            for (ArrayList<Timer> slot : slots) {
+                collect(slot, now);
+            }
+        } else {
+            for (long tick = currentTick; tick <= target; tick++) {
+                collect(slots[(int) (tick & mask)], now);
+            }
+        }
+        // The slot of the current tick is looked at again next time, it may still hold timers due later in the tick.
+        currentTick = Math.max(currentTick, target);
+        try {
+            for (int i = 0; i < expired.size(); i++) {
+                Timer timer = expired.get(i);
+                // Skipped when a timer that fired before it cancelled or moved it.
+                if (timer.index == Timer.EXPIRED) {
+                    timer.index = Timer.IDLE;
+                    timer.listener.onTimer(timer.id, timer.deadline);
+                }
+            }
+        } finally {
+            for (Timer timer : expired) {
+                if (timer.index == Timer.EXPIRED) {
+                    timer.index = Timer.IDLE;
+                }
+            }
+            expired.clear();
+        }
+    }
+
+    private void collect(ArrayList<Timer> slot, long now) {
+        for (int i = slot.size() - 1; i >= 0; i--) {
+            Timer timer = slot.get(i);
+            if (timer.deadline <= now) {
+                remove(timer);
+                timer.index = Timer.EXPIRED;
+                expired.add(timer);
+            }
+        }
+    }
+
+    private void remove(Timer timer) {
+        ArrayList<Timer> slot = slots[(int) (timer.tick & mask)];
+        // Swap with the last one, the order within a slot does not matter.
+        Timer last = slot.remove(slot.size() - 1);
+        if (last != timer) {
+            slot.set(timer.index, last);
+            last.index = timer.index;
+        }
+        timer.index = Timer.IDLE;
+        size -= 1;
+        if (size == 0) {
+            earliest = Long.MAX_VALUE;
+            stale = false;
+            scanFrom = Long.MAX_VALUE;
+        } else if (timer.deadline == earliest) {
+            stale = true;
+        }
+    }
+
+    /**
+     * Looks for the earliest deadline from the first tick that may hold a timer. Every pending timer is
+     * at the current tick or later, so the first tick of this turn holding one has the earliest.
+     */
+    private long findEarliest() {
+        for (long tick = Math.max(scanFrom, currentTick); tick <= currentTick + mask; tick++) {
+            long next = Long.MAX_VALUE;
+            for (Timer timer : slots[(int) (tick & mask)]) {
+                // Only the timers of this turn, the others are found by a later tick.
+                if (timer.tick == tick) {
+                    next = Math.min(next, timer.deadline);
+                }
+            }
+            if (next != Long.MAX_VALUE) {
+                scanFrom = tick;
+                return next;
+            }
+        }
+        // Everything is more than one turn away.
+        long next = Long.MAX_VALUE;
+        long firstTick = Long.MAX_VALUE;
+        for (ArrayList<Timer> slot : slots) {
+            for (Timer timer : slot) {
+                next = Math.min(next, timer.deadline);
+                firstTick = Math.min(firstTick, timer.tick);
+            }
+        }
+        scanFrom = firstTick;
+        return next;
+    }
+
+    /**
+     * Timer is one pending call of a listener, kept by its owner to be scheduled again or cancelled.
+     */
+    public static class Timer {
+
+        private static final int IDLE = -1;
+        // Collected by advance and about to fire.
+        private static final int EXPIRED = -2;
+
+        private final Listener listener;
+        private long id;
+        private long deadline;
+        private long tick;
+        // Position in the slot of tick while pending, IDLE or EXPIRED otherwise.
+        private int index = IDLE;
+
+        public Timer(Listener listener) {
+            this.listener = listener;
+        }
+
+        public boolean isPending() {
+            return index >= 0;
+        }
+    }
+}
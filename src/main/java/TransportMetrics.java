@@ -0,0 +1,218 @@
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * TransportMetrics counts what the transport does, for every connection of one endpoint.
+ * Counters are LongAdders, so the event loops and the client update them without contention,
+ * and the round trip times and transfer times go to LatencyHistograms. The server and the client
+ * count into instances of their own, registered as MXBeans by UDPServer and UDPClient, e.g. for
+ * jconsole, so a JVM running both, like the tests and GoodputBenchmark, keeps them apart.
+ */
+public class TransportMetrics implements TransportMetricsMXBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(TransportMetrics.class);
+
+    private static final TransportMetrics SERVER = new TransportMetrics();
+    private static final TransportMetrics CLIENT = new TransportMetrics();
+    // DATA to SACK, anything else is counted with the NAKs like packetTypeToString does.
+    private static final int TYPES = UDPClient.SACK + 1;
+
+    private final LongAdder[] sent = new LongAdder[TYPES];
+    private final LongAdder[] received = new LongAdder[TYPES];
+    private final LongAdder retransmits = new LongAdder();
+    private final LongAdder fastRetransmits = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder naksReceived = new LongAdder();
+    private final LongAdder goodputBytes = new LongAdder();
+    private final LongAdder transferBytes = new LongAdder();
+    private final LongAdder transferNanos = new LongAdder();
+    private final LatencyHistogram rttMicros = new LatencyHistogram();
+    private final LatencyHistogram transferMillis = new LatencyHistogram();
+    private volatile double lastGoodput = 0;
+
+    public TransportMetrics() {
+        for (int i = 0; i < TYPES; i++) {
+            sent[i] = new LongAdder();
+            received[i] = new LongAdder();
+        }
+    }
+
+    public static TransportMetrics server() {
+        return SERVER;
+    }
+
+    public static TransportMetrics client() {
+        return CLIENT;
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server as A3:type=TransportMetrics,name=name.
+     * Failing to register only loses the metrics, it is logged and otherwise ignored.
+     */
+    public void register(String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName("A3:type=TransportMetrics,name=" + name);
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(this, objectName);
+            }
+        } catch (JMException e) {
+            logger.warn("Could not register the transport metrics over JMX", e);
+        }
+    }
+
+    public void onSent(int type) {
+        sent[typeIndex(type)].increment();
+    }
+
+    public void onReceived(int type) {
+        received[typeIndex(type)].increment();
+    }
+
+    public void onRetransmit() {
+        retransmits.increment();
+    }
+
+    public void onFastRetransmit() {
+        fastRetransmits.increment();
+        retransmits.increment();
+    }
+
+    public void onTimeout() {
+        timeouts.increment();
+    }
+
+    public void onNak() {
+        naksReceived.increment();
+    }
+
+    public void onRttSample(long rttNanos) {
+        rttMicros.record(rttNanos / 1000);
+    }
+
+    public void onAcked(long bytes) {
+        goodputBytes.add(bytes);
+    }
+
+    /**
+     * Records a transfer that was acknowledged in full, bytes of payload in elapsedNanos.
+     */
+    public void onTransfer(long bytes, long elapsedNanos) {
+        transferMillis.record(elapsedNanos / 1000000);
+        transferBytes.add(bytes);
+        transferNanos.add(elapsedNanos);
+        lastGoodput = elapsedNanos > 0 ? bytes * 1e9 / elapsedNanos : 0;
+    }
+
+    @Override
+    public Map<String, Long> getPacketsSent() {
+        return byType(sent);
+    }
+
+    @Override
+    public Map<String, Long> getPacketsReceived() {
+        return byType(received);
+    }
+
+    @Override
+    public long getRetransmits() {
+        return retransmits.sum();
+    }
+
+    @Override
+    public long getFastRetransmits() {
+        return fastRetransmits.sum();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    @Override
+    public long getNaksReceived() {
+        return naksReceived.sum();
+    }
+
+    @Override
+    public double getRetransmitRate() {
+        long data = sent[UDPClient.DATA].sum();
+        return data == 0 ? 0 : (double) retransmits.sum() / data;
+    }
+
+    @Override
+    public long getRttSamples() {
+        return rttMicros.getCount();
+    }
+
+    @Override
+    public long getRttP50Micros() {
+        return rttMicros.getPercentile(50);
+    }
+
+    @Override
+    public long getRttP99Micros() {
+        return rttMicros.getPercentile(99);
+    }
+
+    @Override
+    public long getRttMaxMicros() {
+        return rttMicros.getMax();
+    }
+
+    @Override
+    public long getTransfers() {
+        return transferMillis.getCount();
+    }
+
+    @Override
+    public long getTransferP50Millis() {
+        return transferMillis.getPercentile(50);
+    }
+
+    @Override
+    public long getTransferP99Millis() {
+        return transferMillis.getPercentile(99);
+    }
+
+    @Override
+    public long getTransferMaxMillis() {
+        return transferMillis.getMax();
+    }
+
+    @Override
+    public long getGoodputBytes() {
+        return goodputBytes.sum();
+    }
+
+    @Override
+    public double getGoodputBytesPerSecond() {
+        long nanos = transferNanos.sum();
+        return nanos == 0 ? 0 : transferBytes.sum() * 1e9 / nanos;
+    }
+
+    @Override
+    public double getLastGoodputBytesPerSecond() {
+        return lastGoodput;
+    }
+
+    private static int typeIndex(int type) {
+        return type >= 0 && type < TYPES ? type : UDPClient.NAK;
+    }
+
+    private static Map<String, Long> byType(LongAdder[] counters) {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (int type = 0; type < TYPES; type++) {
+            counts.put(UDPServer.packetTypeToString(type), counters[type].sum());
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,64 @@
+import java.util.Map;
+
+/**
+ * The attributes of TransportMetrics seen over JMX, under A3:type=TransportMetrics.
+ */
+public interface TransportMetricsMXBean {
+
+    /**
+     * Returns the packets sent so far, by type.
+     */
+    Map<String, Long> getPacketsSent();
+
+    /**
+     * Returns the packets received so far, by type.
+     */
+    Map<String, Long> getPacketsReceived();
+
+    /**
+     * Returns the DATA packets sent more than once, for any reason.
+     */
+    long getRetransmits();
+
+    long getFastRetransmits();
+
+    long getTimeouts();
+
+    long getNaksReceived();
+
+    /**
+     * Returns the share of DATA packets that were retransmissions.
+     */
+    double getRetransmitRate();
+
+    long getRttSamples();
+
+    long getRttP50Micros();
+
+    long getRttP99Micros();
+
+    long getRttMaxMicros();
+
+    long getTransfers();
+
+    long getTransferP50Millis();
+
+    long getTransferP99Millis();
+
+    long getTransferMaxMillis();
+
+    /**
+     * Returns the payload bytes acknowledged by the receivers.
+     */
+    long getGoodputBytes();
+
+    /**
+     * Returns the acknowledged payload bytes per second over every completed transfer.
+     */
+    double getGoodputBytesPerSecond();
+
+    /**
+     * Returns the acknowledged payload bytes per second of the last completed transfer.
+     */
+    double getLastGoodputBytesPerSecond();
+}
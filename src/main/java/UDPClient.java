@@ -1,16 +1,17 @@
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
-import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
 
 import static java.nio.channels.SelectionKey.OP_READ;
 
@@ -24,164 +25,284 @@ public class UDPClient {
     protected static final int ACK = 3;
     protected static final int NAK = 4;
     protected static final int FIN = 5;
-
-    protected static final int DATA_CHUNK_SIZE = 1013; //1013
-
-    private static long startTime = 0;
-    private static long endTime = 0;
-    private static long estimatedRTT = 1000;
-    private static long sampleRTT = 0;
-    private static long devRTT = 0;
-    private static long timeoutInterval = 10000;
-    private static int windowHead = 0;
-    private static int windowEnd = 0;
+    protected static final int SACK = 6;
+
+    // Leaves room for the id of a stream, so that any payload fits in a packet of a multiplexed session.
+    protected static final int DATA_CHUNK_SIZE = Packet.MAX_LEN - Packet.MIN_LEN - Packet.STREAM_HEADER_LEN; //1011
+    private static final byte[] SYN_ACK_PAYLOAD = "SYN_ACK".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] EMPTY_PAYLOAD = new byte[0];
+
+    // Shared by the handshake, the request and the response of the connection.
+    private static RttEstimator rtt = new RttEstimator();
+    // Advertised by the server in the SYN_ACK.
+    private static int serverWindow = SelectiveAck.DEFAULT_RECEIVE_WINDOW;
+    // The router.port system property points the client to another router, e.g. an embedded Router.
+    private static SocketAddress routerAddress = new InetSocketAddress("localhost", Integer.getInteger("router.port", 3000));
+    private static InetSocketAddress serverAddress = new InetSocketAddress("localhost", 8007);
+    private static boolean printResponse = true;
+    // Set once the FIN of the server arrived after every packet of the response.
+    private static boolean responseComplete = false;
     protected static int numberOfPackets = 0;
     private static long sequenceNumber = 0;
     private static long port = 0;
-    private static ArrayList<Boolean> ackList;
-    private static ArrayList<Boolean> sentList;
-    private static HashMap<Integer, String> payloadMap;
-
-
-    protected static void runClient(SocketAddress routerAddr, ArrayList<Packet> packetList, Packet syn, Packet ack, Packet fin) throws IOException {
-        try (DatagramChannel channel = DatagramChannel.open()) {
+    private static ReassemblyBuffer response;
+    private static ByteBuffer receiveBuf;
+    private static ByteBuffer sendBuf;
+    private static final PacketView receivedView = new PacketView();
+    // The SYN of a fast open and the ACK completing it, null after a full handshake.
+    private static Packet fastOpenSyn;
+    private static Packet fastOpenAck;
+    private static InetSocketAddress fastOpenServer;
+    private static boolean synAckReceived = false;
+    private static boolean synResent = false;
+    private static long synSentAt;
+
+
+    protected static void runClient(SocketAddress routerAddr, PacketSource source, InetSocketAddress serverAddr, Packet syn, Packet ack) throws IOException {
+        TransportMetrics.client().register("client");
+        rtt = new RttEstimator();
+        serverWindow = SelectiveAck.DEFAULT_RECEIVE_WINDOW;
+        responseComplete = false;
+        receiveBuf = BufferPool.shared().acquire();
+        sendBuf = BufferPool.shared().acquire();
+        // One selector for the whole connection: the handshake, the request and the response.
+        try (DatagramChannel channel = DatagramChannel.open(); Selector selector = Selector.open()) {
             channel.bind(new InetSocketAddress(41830));
-            ackList = new ArrayList<>(Arrays.asList(new Boolean[numberOfPackets]));
-            sentList = new ArrayList<>(Arrays.asList(new Boolean[numberOfPackets]));
-            Collections.fill(ackList, Boolean.FALSE);
-            Collections.fill(sentList, Boolean.FALSE);
+            // Everything goes through the router, connecting to it lets the sender use gathering writes.
+            channel.connect(routerAddr);
+            channel.configureBlocking(false);
+            channel.register(selector, OP_READ);
 
-            doThreeWayHandshake(routerAddr, channel, syn, ack);
+            String token = FastOpen.isEnabled() ? FastOpen.getToken(serverAddr) : null;
+            if (token == null) {
+                fastOpenSyn = null;
+                serverAddr = doThreeWayHandshake(routerAddr, channel, selector, serverAddr, syn, ack);
+            } else {
+                // The request follows the SYN right away, the SYN_ACK is taken whenever it arrives.
+                logger.info("Fast open to {}", serverAddr);
+                startFastOpen(routerAddr, channel, serverAddr, syn, ack, token);
+            }
 
             //send data packets
-            while (ackList.contains(false)) {
-                //send new packets in window
-                sendWindow(routerAddr, packetList, channel, ackList, false);
-                channel.configureBlocking(false);
-                Selector selector = Selector.open();
-                channel.register(selector, OP_READ);
-                // Try to receive a packet within timeout.
-                logger.info("Waiting for the response - {}ms", timeoutInterval);
-                selector.select(timeoutInterval);
-
-                Set<SelectionKey> keys = selector.selectedKeys();
-                if (keys.isEmpty()) {
-                    logger.error("No response after timeout. Sending un-ACKed packets");
-                    //send list of packets that were not ACK
-                    sendWindow(routerAddr, packetList, channel, ackList, true);
-                    continue;
-                }
-
-                //receive packet when available in channel (asynchronous)
-                Packet response = receivePacket(channel);
-                if (response.getType() == NAK) {
-                    sendPacket(routerAddr, channel, packetList.get((int) response.getSequenceNumber()));
-                }
-                if (response.getType() == ACK) {
-                    ackList.set((int) response.getSequenceNumber(), true);
-                    while (windowEnd < ackList.size() && ackList.get(windowHead) == true) {
-                        windowHead += 1;
-                        windowEnd += 1;
-                    }
-                }
-
-                updateRTT();
-                keys.clear();
-                selector.close();
+            SelectiveRepeatSender sender = new SelectiveRepeatSender(source, serverAddr, channel, routerAddr)
+                    .setRttEstimator(rtt)
+                    .setReceiveWindow(serverWindow);
+            if (fastOpenSyn != null) {
+                sender.setControlListener(packet -> onSynAck(routerAddr, channel, packet));
             }
+            try {
+                sender.run(selector, receiveBuf);
+            } finally {
+                sender.close();
+            }
+
+            Packet fin = new Packet.Builder()
+                    .setType(FIN)
+                    .setSequenceNumber(sender.getNextSequenceNumber())
+                    .setPortNumber(serverAddr.getPort())
+                    .setPeerAddress(serverAddr.getAddress())
+                    .setPayload(("FIN").getBytes())
+                    .create();
             sendPacket(routerAddr, channel, fin);
-            listenForResourcePackets(channel, routerAddr, fin);
+            listenForResourcePackets(channel, selector, routerAddr, fin);
+            if (printResponse) {
+                printResource();
+            }
+        } finally {
+            BufferPool.shared().release(receiveBuf);
+            BufferPool.shared().release(sendBuf);
         }
     }
 
-    private static void doThreeWayHandshake(SocketAddress routerAddr, DatagramChannel channel, Packet syn, Packet ack) throws IOException {
+    /**
+     * Returns the address of the server for the rest of the connection, which is the port advertised
+     * in the SYN_ACK when the server runs several event loops. The SYN_ACK also sets serverWindow.
+     */
+    private static InetSocketAddress doThreeWayHandshake(SocketAddress routerAddr, DatagramChannel channel, Selector selector, InetSocketAddress serverAddr, Packet syn, Packet ack) throws IOException {
+        boolean synResent = false;
         while(true){
             //send SYN
+            long synSentAt = System.nanoTime();
             sendPacket(routerAddr, channel, syn);
 
-            channel.configureBlocking(false);
-            Selector selector = Selector.open();
-            channel.register(selector, OP_READ);
-
             logger.info("Waiting for the SYN_ACK");
-            selector.select(timeoutInterval);
-            Set<SelectionKey> keys = selector.selectedKeys();
-            if (keys.isEmpty()) {
+            PacketView response = awaitPacket(selector, channel, rtt.getRtoMillis());
+            if (response == null) {
                 logger.error("No response after timeout. Sending SYN again.");
+                rtt.onTimeout();
+                synResent = true;
                 continue;
             }
 
-            Packet response = receivePacket(channel);
             if (response.getType() == NAK) {
+                synResent = true;
                 sendPacket(routerAddr, channel, syn);
             }
             if (response.getType() == SYN_ACK) {
-                sendPacket(routerAddr, channel, ack);
-                break;
+                if (!synResent) {
+                    long sample = System.nanoTime() - synSentAt;
+                    rtt.onSample(sample);
+                    TransportMetrics.client().onRttSample(sample);
+                }
+                String[] advertised = response.payloadToString().trim().split(" ");
+                keepToken(advertised, serverAddr);
+                serverAddr = advertisedAddress(advertised, serverAddr);
+                serverWindow = advertisedWindow(advertised);
+                sendPacket(routerAddr, channel, ack.toBuilder().setPortNumber(serverAddr.getPort()).create());
+                return serverAddr;
             }
-            keys.clear();
         }
     }
 
-    private static void sendWindow(SocketAddress routerAddr, ArrayList<Packet> packetList, DatagramChannel channel, ArrayList<Boolean> ackList, boolean wasPreviouslySent) throws IOException {
-        for (int i = windowHead; i < windowEnd; i++) {
-            if (!ackList.get(i) && sentList.get(i) == wasPreviouslySent) {
-                sendPacket(routerAddr, channel, packetList.get(i));
-                sentList.set(i, true);
-            }
+    /**
+     * Sends a SYN carrying the FastOpen token of the server. Its sequence number tells its copies from
+     * the SYN of a later connection on the same port.
+     */
+    private static void startFastOpen(SocketAddress routerAddr, DatagramChannel channel, InetSocketAddress serverAddr, Packet syn, Packet ack, String token) throws IOException {
+        fastOpenSyn = syn.toBuilder()
+                .setSequenceNumber(ThreadLocalRandom.current().nextInt(1, Integer.MAX_VALUE))
+                .setPayload(("SYN " + FastOpen.TOKEN + " " + token).getBytes(StandardCharsets.UTF_8))
+                .create();
+        fastOpenAck = ack;
+        fastOpenServer = serverAddr;
+        synAckReceived = false;
+        synResent = false;
+        synSentAt = System.nanoTime();
+        sendPacket(routerAddr, channel, fastOpenSyn);
+    }
+
+    /**
+     * Takes the SYN_ACK of a fast open, and sends the ACK in case the server did not accept the token.
+     */
+    private static void onSynAck(SocketAddress routerAddr, DatagramChannel channel, PacketView synAck) throws IOException {
+        if (synAck.getType() != SYN_ACK || synAckReceived) {
+            return;
         }
+        synAckReceived = true;
+        if (!synResent) {
+            long sample = System.nanoTime() - synSentAt;
+            rtt.onSample(sample);
+            TransportMetrics.client().onRttSample(sample);
+        }
+        String[] advertised = synAck.payloadToString().trim().split(" ");
+        keepToken(advertised, fastOpenServer);
+        fastOpenAck = fastOpenAck.toBuilder().setPortNumber(advertisedAddress(advertised, fastOpenServer).getPort()).create();
+        sendPacket(routerAddr, channel, fastOpenAck);
     }
 
-    public static Packet receivePacket(DatagramChannel channel) throws IOException {
-        // We just want a single response.
-        ByteBuffer buf = ByteBuffer.allocate(Packet.MAX_LEN);
-        //write to the buffer
-        SocketAddress router = channel.receive(buf);
-        endTime = System.currentTimeMillis();
-        //change buffer to be readable
-        buf.flip();
-        //read from buffer and create packet
-        Packet resp = Packet.fromBuffer(buf);
-        logger.info("Received {} Packet #{} from router at {}", packetTypeToString(resp.getType()), resp.getSequenceNumber(), router);
+    /**
+     * Sends the part of a fast open handshake that may have been lost along with the FIN again.
+     */
+    private static void resendFastOpen(SocketAddress routerAddr, DatagramChannel channel) throws IOException {
+        if (synAckReceived) {
+            sendPacket(routerAddr, channel, fastOpenAck);
+        } else {
+            synResent = true;
+            sendPacket(routerAddr, channel, fastOpenSyn);
+        }
+    }
 
-        return resp;
+    // Keeps the token of a SYN_ACK for the next connection to the server.
+    static void keepToken(String[] synAck, InetSocketAddress serverAddr) {
+        String token = FastOpen.tokenOf(synAck);
+        if (token != null && FastOpen.isEnabled()) {
+            FastOpen.putToken(serverAddr, token);
+        }
     }
 
-    private static void sendPacket(SocketAddress routerAddr, DatagramChannel channel, Packet p) throws IOException {
-        channel.send(p.toBuffer(), routerAddr);
-        // start timer
-        startTime = System.currentTimeMillis();
-        logger.info("Sending {} Packet #{} to router at {}", packetTypeToString(p.getType()), p.getSequenceNumber(), routerAddr);
+    // The SYN_ACK payload is "SYN_ACK <port> <window> TOKEN <token>", older servers send "SYN_ACK" alone.
+    static InetSocketAddress advertisedAddress(String[] synAck, InetSocketAddress serverAddr) {
+        if (synAck.length < 2) {
+            return serverAddr;
+        }
+        try {
+            return new InetSocketAddress(serverAddr.getAddress(), Integer.parseInt(synAck[1]));
+        } catch (NumberFormatException e) {
+            return serverAddr;
+        }
+    }
+
+    static int advertisedWindow(String[] synAck) {
+        if (synAck.length < 3) {
+            return SelectiveAck.DEFAULT_RECEIVE_WINDOW;
+        }
+        try {
+            return Integer.parseInt(synAck[2]);
+        } catch (NumberFormatException e) {
+            return SelectiveAck.DEFAULT_RECEIVE_WINDOW;
+        }
     }
 
-    public static void updateRTT() {
-        sampleRTT = endTime - startTime;
-        estimatedRTT = (long) ((0.875 * estimatedRTT) + (0.125 * sampleRTT));
-        devRTT = (long) ((0.75 * devRTT) + 0.25 * (Math.abs(sampleRTT - estimatedRTT)));
-        timeoutInterval = estimatedRTT + 4 * devRTT;
+    /**
+     * Waits up to timeout ms on the selector of the connection and receives the next response,
+     * or returns null if none arrived. A datagram left in the channel keeps it ready for the next call.
+     */
+    private static PacketView awaitPacket(Selector selector, DatagramChannel channel, long timeout) throws IOException {
+        long deadline = System.currentTimeMillis() + timeout;
+        // An ICMP error wakes the selector too, it is waited out like a lost datagram.
+        for (long wait = timeout; wait > 0; wait = deadline - System.currentTimeMillis()) {
+            if (selector.select(wait) == 0) {
+                return null;
+            }
+            selector.selectedKeys().clear();
+            PacketView packet = receivePacket(channel);
+            if (packet != null) {
+                return packet;
+            }
+        }
+        return null;
     }
 
-    protected static ArrayList<Packet> buildPackets(String data, InetSocketAddress serverAddr, int packetType) throws IOException {
-        // payload of each packet should be between 0 and 1013 bytes
-        ArrayList<Packet> arrayOfPackets = new ArrayList<>();
-        byte[] dataInBytes = data.getBytes();
-        ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(dataInBytes);
-        byte[] buffer = new byte[DATA_CHUNK_SIZE];
-        byte[] payload;
-        int len;
-        int ctr = 0;
+    /**
+     * Receives a single response into the shared receive buffer, null if none is queued.
+     * The returned view is only valid until the next call.
+     */
+    public static PacketView receivePacket(DatagramChannel channel) throws IOException {
+        receiveBuf.clear();
+        //write to the buffer
+        SocketAddress router;
+        try {
+            router = channel.receive(receiveBuf);
+        } catch (PortUnreachableException e) {
+            // Nothing listens at the router address (yet), the datagram sent there was lost.
+            return null;
+        }
+        if (router == null) {
+            return null;
+        }
+        //change buffer to be readable
+        receiveBuf.flip();
+        //read the packet in place from the buffer
+        PacketView resp = receivedView.wrap(receiveBuf);
+        TransportMetrics.client().onReceived(resp.getType());
+        if (logger.isDebugEnabled()) {
+            logger.debug("Received {} Packet #{} from router at {}", packetTypeToString(resp.getType()), resp.getSequenceNumber(), router);
+        }
 
-        while ((len = byteArrayInputStream.read(buffer)) > 0) {
-            payload = Arrays.copyOfRange(dataInBytes, ctr, ctr + len);
+        return resp;
+    }
 
-            Packet p = makePacket(serverAddr, packetType, payload);
+    private static void sendPacket(SocketAddress routerAddr, DatagramChannel channel, Packet p) throws IOException {
+        sendBuf.clear();
+        p.writeTo(sendBuf);
+        sendBuf.flip();
+        send(channel, routerAddr);
+        TransportMetrics.client().onSent(p.getType());
+        if (logger.isDebugEnabled()) {
+            logger.debug("Sending {} Packet #{} to router at {}", packetTypeToString(p.getType()), p.getSequenceNumber(), routerAddr);
+        }
+    }
 
-            arrayOfPackets.add(p);
-            ctr = ctr + len;
+    /**
+     * Sends the send buffer to the router. The channel is connected to it, so an ICMP error from an
+     * earlier datagram may surface here, the packet then counts as lost and is sent again on timeout.
+     */
+    private static void send(DatagramChannel channel, SocketAddress routerAddr) throws IOException {
+        try {
+            channel.send(sendBuf, routerAddr);
+        } catch (PortUnreachableException e) {
+            logger.debug("The router at {} is unreachable", routerAddr);
         }
-        numberOfPackets = arrayOfPackets.size();
-        windowEnd = (numberOfPackets > 1) ? (numberOfPackets / 2) : 1;
-        return arrayOfPackets;
     }
 
     protected static Packet makePacket(InetSocketAddress serverAddr, int packetType, byte[] payload) {
@@ -198,6 +319,7 @@ public class UDPClient {
     private static String receiver;
     private Boolean outputToFile;
     private String filePath;
+    private Path bodyFile;
 
     private UDPClient() {
         //do not allow creating of TCP client without any params;
@@ -211,6 +333,13 @@ public class UDPClient {
         this.filePath = filePath;
     }
 
+    /**
+     * Streams the body of a POST from the given file instead of the inline data.
+     */
+    public void setBodyFile(Path bodyFile) {
+        this.bodyFile = bodyFile;
+    }
+
     public UDPClient(String host, int port){
         this.sender = "";
         this.receiver = "";
@@ -244,105 +373,206 @@ public class UDPClient {
 
     private void sendPostRequest(String header, String data) throws IOException {
         sender = sender.concat("\n");
+        if (bodyFile != null) {
+            // The file is read from disk as the window advances rather than loaded into the message.
+            sendRequestToRouter(new CompositePacketSource(
+                    new BufferPacketSource(getSender().getBytes()),
+                    ChannelPacketSource.open(bodyFile),
+                    new BufferPacketSource(("Connection: Close\n").getBytes())));
+            return;
+        }
         sender = sender.concat(data);
         sender = sender.concat("Connection: Close");
         sender = sender.concat("\n");
         sendRequestToRouter();
     }
 
+    /**
+     * Sends a GET for every endpoint over one multiplexed session, all at once, and prints the responses
+     * in the order of the endpoints. Only the first request pays for the handshake.
+     */
+    public void sendGetRequests(List<String> endpoints, String host, String header) throws IOException {
+        try (ClientSession session = ClientSession.open(routerAddress, serverAddress)) {
+            List<ClientSession.Stream> streams = new ArrayList<>();
+            for (String endpoint : endpoints) {
+                String message = RequestType.GET + " " + endpoint + " HTTP/1.0\n"
+                        + "Host: " + host + "\n"
+                        + (header.isEmpty() ? "" : header + "\n")
+                        + "Connection: keep-alive\n\n";
+                streams.add(session.request(message.getBytes(StandardCharsets.UTF_8)));
+            }
+            for (ClientSession.Stream stream : streams) {
+                session.await(stream);
+                response = stream.getResponse();
+                responseComplete = stream.isComplete();
+                if (printResponse) {
+                    printResource();
+                }
+            }
+        }
+    }
+
+    public static void setRouterAddress(SocketAddress routerAddr) {
+        routerAddress = routerAddr;
+    }
+
+    public static void setServerAddress(InetSocketAddress serverAddr) {
+        serverAddress = serverAddr;
+    }
+
+    /**
+     * Keeps the response in memory only, for callers that read it with getResponse.
+     */
+    public static void setPrintResponse(boolean print) {
+        printResponse = print;
+    }
+
+    /**
+     * Returns the response of the last request, in the order it was received.
+     */
+    public static ReassemblyBuffer getResponse() {
+        return response;
+    }
+
+    public static boolean isResponseComplete() {
+        return responseComplete;
+    }
+
+    /**
+     * True if the last request went out behind a fast open SYN.
+     */
+    static boolean isFastOpen() {
+        return fastOpenSyn != null;
+    }
+
     public static void sendRequestToRouter() throws IOException {
-        SocketAddress routerAddress = new InetSocketAddress("localhost", 3000);
-        InetSocketAddress serverAddress = new InetSocketAddress("localhost", 8007);
-        //data packets
-        ArrayList<Packet> packetList = UDPClient.buildPackets(getSender(), serverAddress, DATA);
+        sendRequestToRouter(new BufferPacketSource(getSender().getBytes()));
+    }
+
+    public static void sendRequestToRouter(PacketSource source) throws IOException {
+        numberOfPackets = (int) source.packetCount();
         //handshake packets
         Packet syn = makePacket(serverAddress, SYN, ("SYN").getBytes()).toBuilder().setSequenceNumber(0).create();
         Packet ack = makePacket(serverAddress, ACK, String.valueOf(numberOfPackets).getBytes()).toBuilder().setSequenceNumber(1).create();
-        Packet fin = makePacket(serverAddress, FIN, ("FIN").getBytes()).toBuilder().setSequenceNumber(sequenceNumber+1).create();
-        UDPClient.runClient(routerAddress, packetList, syn, ack, fin);
+        UDPClient.runClient(routerAddress, source, serverAddress, syn, ack);
     }
 
-    private static void listenForResourcePackets(DatagramChannel channel, SocketAddress routerAddr, Packet fin) throws IOException {
-        payloadMap = new HashMap<>();
+    /**
+     * Receives the response until the FIN of the server, or until it stopped sending.
+     */
+    private static void listenForResourcePackets(DatagramChannel channel, Selector selector, SocketAddress routerAddr, Packet fin) throws IOException {
+        // The window is the ring of the buffer, which the packets leave as soon as the gap before them is
+        // filled. The message is kept whole for getResponse, nothing drains it, so the window never shrinks.
+        SelectiveAck sack = new SelectiveAck();
+        response = new ReassemblyBuffer(SelectiveAck.DEFAULT_RECEIVE_WINDOW, -1);
+        int serverAddress = 0;
+        int serverPort = 0;
         boolean initialCycle = true;
         int count = 0;
             for (; ; ) {
-                channel.configureBlocking(false);
-                Selector selector = Selector.open();
-                channel.register(selector, OP_READ);
-                // Try to receive a packet within timeout.
-                logger.info("Waiting for the resource packets - {}ms", timeoutInterval);
-                selector.select(timeoutInterval);
-
-                Set<SelectionKey> keys = selector.selectedKeys();
-                if (keys.isEmpty()) {
+                // Try to receive a packet within timeout, or hold back a pending SACK for a little while.
+                long wait = sack.isPending() ? SelectiveAck.DELAYED_ACK_MS : rtt.getRtoMillis();
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Waiting for the resource packets - {}ms", wait);
+                }
+                PacketView receivedPacket = awaitPacket(selector, channel, wait);
+
+                if (receivedPacket == null && sack.isPending()) {
+                    sendSack(routerAddr, channel, sack, serverAddress, serverPort);
+                    continue;
+                }
+                if (receivedPacket == null) {
                     if(initialCycle){
                         initialCycle = false;
                         logger.info("Trying FIN again.");
+                        if (fastOpenSyn != null) {
+                            resendFastOpen(routerAddr, channel);
+                        }
                         sendPacket(routerAddr, channel, fin);
                     }
                     if(count > 4){
                         logger.info("Number of tries exceeded, printing received resources and exiting.");
-                        printResource();
+                        return;
                     }
                     count+=1;
                     continue;
                 }
                 int responseType = 0;
-                Packet receivedPacket = receivePacket(channel);
-                String payload = new String(receivedPacket.getPayload(), StandardCharsets.UTF_8);
+                byte[] payload = EMPTY_PAYLOAD;
                 int requestType = receivedPacket.getType();
                 switch (requestType) {
                     case SYN:
                         responseType = SYN_ACK;
-                        payload = "SYN_ACK";
+                        payload = SYN_ACK_PAYLOAD;
                         break;
+                    case SYN_ACK:
+                        if (fastOpenSyn != null) {
+                            onSynAck(routerAddr, channel, receivedPacket);
+                        }
+                        continue;
                     case ACK:
-                        numberOfPackets = Integer.valueOf(payload);
+                        numberOfPackets = Integer.valueOf(receivedPacket.payloadToString());
+                        response.expect(numberOfPackets);
                         break;
                     case DATA:
-                        responseType = ACK;
-                        payloadMap.put((int) receivedPacket.getSequenceNumber(), payload);
-                        break;
+                        serverAddress = receivedPacket.getPeerAddressBits();
+                        serverPort = receivedPacket.getPeerPort();
+                        if (!sack.isInWindow(receivedPacket.getSequenceNumber())) {
+                            // Dropped, the SACK tells the server how far it may go.
+                            sendSack(routerAddr, channel, sack, serverAddress, serverPort);
+                            continue;
+                        }
+                        response.put(receivedPacket.getSequenceNumber(), receivedPacket.getPayload());
+                        if (sack.record(receivedPacket.getSequenceNumber())) {
+                            sendSack(routerAddr, channel, sack, serverAddress, serverPort);
+                        }
+                        initialCycle = false;
+                        continue;
                     case FIN:
-                        printResource();
-                        break;
+                        // The sequence number of the FIN is the number of DATA packets.
+                        if (response.getNextSequenceNumber() < receivedPacket.getSequenceNumber()) {
+                            logger.error("Only {} of {} packets of the response arrived in order.",
+                                    response.getNextSequenceNumber(), receivedPacket.getSequenceNumber());
+                        } else {
+                            responseComplete = true;
+                        }
+                        return;
                     default:
                         responseType = NAK;
                         break;
                 }
                 // Send the response to the router not the client.
-                // The peer address of the packet is the address of the client already.
-                // We can use toBuilder to copy properties of the current packet.
-                // This demonstrate how to create a new packet from an existing packet.
+                // The peer address of the packet is the address of the server already,
+                // so the response header is encoded straight from the received view.
                 if (requestType != ACK && requestType != FIN) {
-                    Packet resp = makeResponsePacket(responseType, payload, receivedPacket);
-                    sendPacket(routerAddr, channel, resp);
+                    sendResponsePacket(routerAddr, channel, responseType, payload, receivedPacket);
                 }
                 initialCycle = false;
             }
     }
 
-    private static void printResource() throws IOException {
-        String resource = packetPayloadsToString();
-        System.out.println(resource);
-        System.exit(0);
+    private static void sendSack(SocketAddress routerAddr, DatagramChannel channel, SelectiveAck sack, int peerAddress, int peerPort) throws IOException {
+        sack.writeTo(sendBuf, peerAddress, peerPort);
+        send(channel, routerAddr);
+        TransportMetrics.client().onSent(SACK);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Sending SACK Packet #{} to router at {}", sack.getCumulative(), routerAddr);
+        }
     }
 
-    private static Packet makeResponsePacket(int responseType, String payload, Packet packet) {
-        return packet.toBuilder()
-                .setPayload(payload.getBytes())
-                .setType(responseType)
-                .setSequenceNumber(packet.getSequenceNumber())
-                .create();
+    private static void printResource() throws IOException {
+        // Written as received, the body is never decoded.
+        response.writeTo(System.out);
+        System.out.println();
     }
 
-    private static String packetPayloadsToString() {
-        StringBuilder sb = new StringBuilder();
-        for(int i=0; i<payloadMap.size(); i++){
-            sb.append(payloadMap.get(i));
+    private static void sendResponsePacket(SocketAddress routerAddr, DatagramChannel channel, int responseType, byte[] payload, PacketView packet) throws IOException {
+        Packet.encode(sendBuf, responseType, packet.getSequenceNumber(), packet.getPeerAddressBits(), packet.getPeerPort(), payload);
+        send(channel, routerAddr);
+        TransportMetrics.client().onSent(responseType);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Sending {} Packet #{} to router at {}", packetTypeToString(responseType), packet.getSequenceNumber(), routerAddr);
         }
-        return sb.toString();
     }
 
     private static String packetTypeToString(int type) {
@@ -359,6 +589,8 @@ public class UDPClient {
                 return "NAK";
             case 5:
                 return "FIN";
+            case 6:
+                return "SACK";
             default:
                 return "NAK";
         }
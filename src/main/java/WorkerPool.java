@@ -0,0 +1,128 @@
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.channels.Selector;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * WorkerPool runs the blocking work of the server, request handling and disk I/O, away from the event loop.
+ * Work is queued on a lane, and the tasks of one lane run one at a time in the order they were queued,
+ * so a session can hand off its file writes without any locking. Results are handed back with complete,
+ * which queues the callback and wakes the selector, and the event loop runs them in runCompletions.
+ * The executor is shared by every loop of the server and shut down by UDPServer, not by the pools.
+ */
+public class WorkerPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(WorkerPool.class);
+
+    private final ExecutorService executor;
+    private final Selector selector;
+    private final Queue<Runnable> completions = new ConcurrentLinkedQueue<>();
+
+    public WorkerPool(ExecutorService executor, Selector selector) {
+        this.executor = executor;
+        this.selector = selector;
+    }
+
+    /**
+     * Returns an executor with one thread per task on Java 21 and later, otherwise a pool of the given
+     * number of threads. A thread count of 0 or less always picks the default for the running JDK.
+     */
+    public static ExecutorService newExecutor(int threads) {
+        if (threads <= 0) {
+            try {
+                // Looked up by reflection, the code is compiled for Java 8.
+                ExecutorService virtual = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                logger.info("Handling requests on virtual threads");
+                return virtual;
+            } catch (ReflectiveOperationException e) {
+                threads = Runtime.getRuntime().availableProcessors() * 2;
+            }
+        }
+        logger.info("Handling requests on {} worker threads", threads);
+        AtomicInteger count = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), task -> {
+            Thread thread = new Thread(task, "server-worker-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Returns a new lane, the tasks given to it run in order on the pool.
+     */
+    public Executor newLane() {
+        return new Lane(executor);
+    }
+
+    /**
+     * Queues a callback for the event loop. Safe to call from any thread.
+     */
+    public void complete(Runnable callback) {
+        completions.add(callback);
+        selector.wakeup();
+    }
+
+    /**
+     * Runs the queued callbacks, only called by the event loop.
+     */
+    public void runCompletions() {
+        Runnable callback;
+        while ((callback = completions.poll()) != null) {
+            callback.run();
+        }
+    }
+
+    /**
+     * Lane runs at most one of its tasks at a time. The queue and the scheduled flag hand each task
+     * over to the next one, so a task sees everything the ones before it did.
+     */
+    private static class Lane implements Executor {
+
+        private final Executor executor;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        Lane(Executor executor) {
+            this.executor = executor;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+            schedule();
+        }
+
+        private void schedule() {
+            if (!tasks.isEmpty() && scheduled.compareAndSet(false, true)) {
+                executor.execute(this::drain);
+            }
+        }
+
+        private void drain() {
+            try {
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        logger.error("Worker task failed", e);
+                    }
+                }
+            } finally {
+                scheduled.set(false);
+                // A task may have been queued after the last poll but before the flag was cleared.
+                schedule();
+            }
+        }
+    }
+}
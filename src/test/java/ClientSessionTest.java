@@ -0,0 +1,103 @@
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+
+public class ClientSessionTest {
+
+    private static Path root;
+    private static String documentRoot;
+    private static UDPServer server;
+    private static InetSocketAddress serverAddr;
+    private static byte[] large;
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        root = Files.createTempDirectory("sessions");
+        large = new byte[300 * 1024];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (byte) ('a' + i % 26);
+        }
+        Files.write(root.resolve("large.txt"), large);
+        Files.write(root.resolve("small.txt"), "small".getBytes(StandardCharsets.US_ASCII));
+        documentRoot = RequestHandler.getDocumentRoot();
+        RequestHandler.setDocumentRoot(root.toString());
+        int port = freePort();
+        server = new UDPServer(2);
+        server.start(port, 1, false);
+        serverAddr = new InetSocketAddress("localhost", port);
+    }
+
+    @AfterClass
+    public static void stopServer() throws Exception {
+        server.close();
+        RequestHandler.setDocumentRoot(documentRoot);
+        Files.delete(root.resolve("large.txt"));
+        Files.delete(root.resolve("small.txt"));
+        Files.delete(root);
+    }
+
+    @Test
+    public void testRequestsShareOneSessionAndArriveWhole() throws Exception {
+        try (Router router = new Router(0).setDropRate(0.1).setSeed(3).start();
+             ClientSession session = ClientSession.open(new InetSocketAddress("localhost", router.getPort()), serverAddr)) {
+            ClientSession.Stream first = session.request(get("/large.txt"));
+            ClientSession.Stream second = session.request(get("/small.txt"));
+            ClientSession.Stream third = session.request(get("/missing.txt"));
+            session.awaitAll();
+
+            assertThat(first.getId()).isEqualTo(0);
+            assertThat(third.getId()).isEqualTo(2);
+            assertThat(first.isComplete()).isTrue();
+            assertThat(second.isComplete()).isTrue();
+            assertThat(third.isComplete()).isTrue();
+            assertThat(body(first)).isEqualTo(large);
+            assertThat(new String(body(second), StandardCharsets.US_ASCII)).isEqualTo("small");
+            assertThat(third.getResponse().decode(StandardCharsets.US_ASCII)).startsWith("HTTP/1.0 404");
+            assertThat(session.getOpenStreams()).isZero();
+        }
+    }
+
+    @Test
+    public void testSmallResponseIsNotHeldUpByALargeOne() throws Exception {
+        try (Router router = new Router(0).setBandwidth(2000000).start();
+             ClientSession session = ClientSession.open(new InetSocketAddress("localhost", router.getPort()), serverAddr)) {
+            ClientSession.Stream download = session.request(get("/large.txt"));
+            ClientSession.Stream small = session.request(get("/small.txt"));
+            session.await(small);
+
+            assertThat(small.isComplete()).isTrue();
+            assertThat(download.isDone()).isFalse();
+            session.await(download);
+            assertThat(body(download)).isEqualTo(large);
+        }
+    }
+
+    private static int freePort() throws Exception {
+        try (DatagramChannel probe = DatagramChannel.open().bind(new InetSocketAddress(0))) {
+            return ((InetSocketAddress) probe.getLocalAddress()).getPort();
+        }
+    }
+
+    private static byte[] get(String path) {
+        return ("GET " + path + " HTTP/1.0\nHost: localhost\nConnection: keep-alive\n\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Returns the bytes of a response after its header block.
+     */
+    private static byte[] body(ClientSession.Stream stream) {
+        String response = stream.getResponse().decode(StandardCharsets.ISO_8859_1);
+        int start = response.indexOf("\r\n\r\n") + 4;
+        return Arrays.copyOfRange(response.getBytes(StandardCharsets.ISO_8859_1), start, response.length());
+    }
+}
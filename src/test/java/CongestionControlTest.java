@@ -0,0 +1,50 @@
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+
+public class CongestionControlTest {
+
+    private static final long RTT = 10000000;
+
+    @Test
+    public void testNewRenoSlowStartThenAdditiveIncrease() {
+        NewRenoCongestionControl cc = new NewRenoCongestionControl();
+        assertThat(cc.getWindow()).isEqualTo(CongestionControl.INITIAL_WINDOW);
+        cc.onAck(10, RTT);
+        assertThat(cc.getWindow()).isEqualTo(20);
+
+        cc.onLoss();
+        assertThat(cc.getWindow()).isEqualTo(10);
+        // One window of ACKs grows the window by one packet.
+        cc.onAck(10, RTT);
+        assertThat(cc.getWindow()).isEqualTo(10);
+        cc.onAck(1, RTT);
+        assertThat(cc.getWindow()).isEqualTo(11);
+
+        cc.onTimeout();
+        assertThat(cc.getWindow()).isEqualTo(1);
+        cc.onAck(4, RTT);
+        assertThat(cc.getWindow()).isEqualTo(5);
+    }
+
+    @Test
+    public void testCubicBacksOffLessAndRecoversTowardsTheWindowAtLoss() {
+        CubicCongestionControl cc = new CubicCongestionControl();
+        cc.onAck(90, RTT);
+        assertThat(cc.getWindow()).isEqualTo(100);
+
+        cc.onLoss();
+        assertThat(cc.getWindow()).isEqualTo(70);
+        for (int i = 0; i < 50; i++) {
+            cc.onAck(cc.getWindow(), RTT);
+        }
+        assertThat(cc.getWindow()).isGreaterThan(70);
+    }
+
+    @Test
+    public void testControllersAreFoundByName() {
+        assertThat(CongestionControl.create("NewReno")).isInstanceOf(NewRenoCongestionControl.class);
+        assertThat(CongestionControl.create("cubic")).isInstanceOf(CubicCongestionControl.class);
+    }
+}
@@ -0,0 +1,84 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+
+public class DocumentIndexTest {
+
+    private Path root;
+    private DocumentIndex index;
+
+    @Before
+    public void openIndex() throws IOException {
+        root = Files.createTempDirectory("index");
+        Files.write(root.resolve("a.txt"), "hello".getBytes(StandardCharsets.US_ASCII));
+        Files.createDirectory(root.resolve("sub"));
+        index = DocumentIndex.open(root);
+    }
+
+    @After
+    public void closeIndex() throws IOException {
+        index.close();
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Test
+    public void testIndexHoldsTheRootAtStartup() {
+        DocumentIndex.Entry file = index.lookup(root.resolve("sub/../a.txt"));
+        assertThat(file).isNotNull();
+        assertThat(file.isDirectory()).isFalse();
+        assertThat(file.isReadable()).isTrue();
+        assertThat(file.getAttributes().size()).isEqualTo(5);
+        assertThat(file.getContentType()).isEqualTo("text/plain");
+        assertThat(index.lookup(root.resolve("sub")).isDirectory()).isTrue();
+        assertThat(index.lookup(root.resolve("missing.txt"))).isNull();
+        assertThat(index.covers(root.resolve("../outside.txt"))).isFalse();
+    }
+
+    @Test
+    public void testRefreshTakesAWriteAtOnce() throws Exception {
+        Path file = root.resolve("a.txt");
+        Files.write(file, " world".getBytes(StandardCharsets.US_ASCII), StandardOpenOption.APPEND);
+        index.refresh(file);
+
+        assertThat(index.lookup(file).getAttributes().size()).isEqualTo(11);
+    }
+
+    @Test
+    public void testWatcherFollowsChangesMadeOutsideOfTheServer() throws Exception {
+        Path created = root.resolve("sub/new/b.txt");
+        Files.createDirectories(created.getParent());
+        Files.write(created, "b".getBytes(StandardCharsets.US_ASCII));
+        Files.delete(root.resolve("a.txt"));
+
+        assertThat(eventually(() -> index.lookup(created) != null)).isTrue();
+        assertThat(eventually(() -> index.lookup(root.resolve("a.txt")) == null)).isTrue();
+    }
+
+    private static boolean eventually(BooleanSupplier condition) throws InterruptedException {
+        // Some file systems are polled rather than notified, every few seconds.
+        long deadline = System.currentTimeMillis() + 15000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(20);
+        }
+        return true;
+    }
+}
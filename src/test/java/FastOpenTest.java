@@ -0,0 +1,95 @@
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+
+public class FastOpenTest {
+
+    private static Path root;
+    private static String documentRoot;
+    private static UDPServer server;
+    private static InetSocketAddress serverAddr;
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        root = Files.createTempDirectory("fastopen");
+        Files.write(root.resolve("hello.txt"), "hello".getBytes(StandardCharsets.US_ASCII));
+        documentRoot = RequestHandler.getDocumentRoot();
+        RequestHandler.setDocumentRoot(root.toString());
+        int port = freePort();
+        server = new UDPServer(2);
+        server.start(port, 1, false);
+        serverAddr = new InetSocketAddress("localhost", port);
+        UDPClient.setServerAddress(serverAddr);
+        UDPClient.setPrintResponse(false);
+        System.setProperty("fastopen", "true");
+    }
+
+    @AfterClass
+    public static void stopServer() throws Exception {
+        server.close();
+        System.clearProperty("fastopen");
+        UDPClient.setPrintResponse(true);
+        RequestHandler.setDocumentRoot(documentRoot);
+        Files.delete(root.resolve("hello.txt"));
+        Files.delete(root);
+    }
+
+    @Test
+    public void testTokenIsBoundToTheClientAddress() throws Exception {
+        int client = Packet.addressToInt(InetAddress.getByName("192.168.2.125"));
+        int other = Packet.addressToInt(InetAddress.getByName("192.168.2.126"));
+        String token = FastOpen.issue(client);
+
+        assertThat(FastOpen.isValid(client, token)).isTrue();
+        assertThat(FastOpen.isValid(other, token)).isFalse();
+        assertThat(FastOpen.tokenOf("SYN_ACK 8007 256 TOKEN abc".split(" "))).isEqualTo("abc");
+        assertThat(FastOpen.tokenOf("SYN_ACK 8007 256".split(" "))).isNull();
+    }
+
+    @Test
+    public void testSecondRequestOpensFastWithTheTokenOfTheFirst() throws Exception {
+        try (Router router = new Router(0).start()) {
+            UDPClient.setRouterAddress(new InetSocketAddress("localhost", router.getPort()));
+            get("/hello.txt");
+            assertThat(FastOpen.getToken(serverAddr)).isNotNull();
+
+            get("/hello.txt");
+            assertThat(UDPClient.isFastOpen()).isTrue();
+            assertThat(UDPClient.isResponseComplete()).isTrue();
+            assertThat(UDPClient.getResponse().decode(StandardCharsets.US_ASCII)).startsWith("HTTP/1.0 200").endsWith("hello");
+        }
+    }
+
+    @Test
+    public void testRequestUnderAnUnknownTokenWaitsForTheHandshake() throws Exception {
+        try (Router router = new Router(0).start()) {
+            UDPClient.setRouterAddress(new InetSocketAddress("localhost", router.getPort()));
+            FastOpen.putToken(serverAddr, "0000000000000000");
+            get("/hello.txt");
+
+            assertThat(UDPClient.isResponseComplete()).isTrue();
+            assertThat(UDPClient.getResponse().decode(StandardCharsets.US_ASCII)).startsWith("HTTP/1.0 200").endsWith("hello");
+            assertThat(FastOpen.getToken(serverAddr)).isNotEqualTo("0000000000000000");
+        }
+    }
+
+    private static void get(String path) throws Exception {
+        new UDPClient("localhost", 0).sendRequest(RequestType.GET, path, "localhost", "", "", false);
+    }
+
+    private static int freePort() throws Exception {
+        try (DatagramChannel probe = DatagramChannel.open().bind(new InetSocketAddress(0))) {
+            return ((InetSocketAddress) probe.getLocalAddress()).getPort();
+        }
+    }
+}
@@ -0,0 +1,34 @@
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testPercentilesWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long v = 1; v <= 10000; v++) {
+            histogram.record(v);
+        }
+        assertThat(histogram.getCount()).isEqualTo(10000);
+        assertThat(histogram.getMax()).isEqualTo(10000);
+        assertThat(histogram.getMean()).isEqualTo(5000.5);
+        assertThat(histogram.getPercentile(50)).isBetween(5000L, 5000L + 5000 / 32);
+        assertThat(histogram.getPercentile(99)).isBetween(9900L, 9900L + 9900 / 32);
+        assertThat(histogram.getPercentile(100)).isEqualTo(10000);
+    }
+
+    @Test
+    public void testBucketsCoverEveryValue() {
+        int last = -1;
+        for (long v : new long[]{0, 1, 63, 64, 65, 127, 128, 1000, 1L << 40, Long.MAX_VALUE}) {
+            int index = LatencyHistogram.index(v);
+            assertThat(index).isGreaterThanOrEqualTo(last);
+            assertThat(LatencyHistogram.highestValue(index)).isGreaterThanOrEqualTo(v);
+            assertThat(index == 0 || LatencyHistogram.highestValue(index - 1) < v).isTrue();
+            last = index;
+        }
+        assertThat(new LatencyHistogram().getPercentile(99)).isZero();
+    }
+}
@@ -0,0 +1,45 @@
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+
+public class PacerTest {
+
+    private static final long MS = 1000000;
+
+    @Test
+    public void testWindowIsSpreadOverTheRtt() {
+        Pacer pacer = new Pacer(0);
+        // 20 packets per 10ms, twice that with the gain: one packet every 0.25ms
+        pacer.setRate(20, 10 * MS, 0);
+        assertThat(pacer.getRate()).isEqualTo(4000);
+        for (int i = 0; i < Pacer.BURST; i++) {
+            assertThat(pacer.delayNanos(0)).isZero();
+            pacer.onSend(0);
+        }
+        assertThat(pacer.delayNanos(0)).isEqualTo(MS / 4);
+        assertThat(pacer.delayNanos(MS / 4)).isZero();
+        pacer.onSend(MS / 4);
+        assertThat(pacer.delayNanos(MS / 4)).isEqualTo(MS / 4);
+    }
+
+    @Test
+    public void testMaxRateCapsThePace() {
+        Pacer pacer = new Pacer(1000);
+        // before the first sample
+        pacer.setRate(10, -1, 0);
+        assertThat(pacer.getRate()).isEqualTo(1000);
+        pacer.setRate(20, 10 * MS, 0);
+        assertThat(pacer.getRate()).isEqualTo(1000);
+    }
+
+    @Test
+    public void testNoLimitWithoutSampleOrMaxRate() {
+        Pacer pacer = new Pacer(0);
+        pacer.setRate(10, -1, 0);
+        for (int i = 0; i < 100; i++) {
+            assertThat(pacer.delayNanos(0)).isZero();
+            pacer.onSend(0);
+        }
+    }
+}
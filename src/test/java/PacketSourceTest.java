@@ -0,0 +1,77 @@
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+
+public class PacketSourceTest {
+
+    private static byte[] bytes(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) i;
+        }
+        return data;
+    }
+
+    private static byte[] drain(PacketSource source) throws Exception {
+        ByteBuffer all = ByteBuffer.allocate(1 << 16);
+        ByteBuffer payload;
+        while ((payload = source.next()) != null) {
+            assertThat(payload.remaining()).isLessThanOrEqualTo(UDPClient.DATA_CHUNK_SIZE);
+            all.put(payload);
+            source.release(payload);
+        }
+        all.flip();
+        byte[] raw = new byte[all.remaining()];
+        all.get(raw);
+        return raw;
+    }
+
+    @Test
+    public void testBufferSourceSlicesIntoChunks() throws Exception {
+        byte[] data = bytes(3000);
+        BufferPacketSource source = new BufferPacketSource(data);
+        assertThat(source.packetCount()).isEqualTo(3);
+        assertThat(drain(source)).isEqualTo(data);
+    }
+
+    @Test
+    public void testChannelSourceReusesReleasedBuffers() throws Exception {
+        byte[] data = bytes(5000);
+        ChannelPacketSource source = new ChannelPacketSource(Channels.newChannel(new ByteArrayInputStream(data)), -1);
+        assertThat(source.packetCount()).isEqualTo(-1);
+        assertThat(drain(source)).isEqualTo(data);
+    }
+
+    @Test
+    public void testCompositeSourceConcatenates() throws Exception {
+        CompositePacketSource source = new CompositePacketSource(
+                new BufferPacketSource("head".getBytes()),
+                new BufferPacketSource(bytes(1500)),
+                new BufferPacketSource("tail".getBytes()));
+        assertThat(source.packetCount()).isEqualTo(4);
+        assertThat(drain(source)).hasSize(1508);
+    }
+
+    @Test
+    public void testMappedSourceServesFileBytes() throws Exception {
+        byte[] data = bytes(2500);
+        Path file = Files.createTempFile("mapped", ".bin");
+        try {
+            Files.write(file, data);
+            MappedPacketSource source = MappedPacketSource.open(file);
+            assertThat(source.size()).isEqualTo(2500);
+            assertThat(source.packetCount()).isEqualTo(3);
+            assertThat(drain(source)).isEqualTo(data);
+            source.close();
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+
+public class PacketViewTest {
+
+    @Test
+    public void testViewReadsFieldsInPlace() throws Exception {
+        Packet p = new Packet.Builder()
+                .setType(3)
+                .setSequenceNumber(2992122123L)
+                .setPeerAddress(PacketTest.addr(192, 168, 2, 125))
+                .setPortNumber(53201)
+                .setPayload("Hello World".getBytes())
+                .create();
+        ByteBuffer buf = BufferPool.shared().acquire();
+        p.writeTo(buf);
+        buf.flip();
+
+        PacketView view = new PacketView().wrap(buf);
+
+        assertThat(view.getType()).isEqualTo(3);
+        assertThat(view.getSequenceNumber()).isEqualTo(2992122123L);
+        assertThat(view.getPeerAddress()).isEqualTo(PacketTest.addr(192, 168, 2, 125));
+        assertThat(view.getPeerPort()).isEqualTo(53201);
+        assertThat(view.payloadToString()).isEqualTo("Hello World");
+        assertThat(view.toPacket().toBytes()).isEqualTo(p.toBytes());
+        BufferPool.shared().release(buf);
+    }
+
+    @Test
+    public void testEncodeMatchesPacket() throws Exception {
+        Packet p = new Packet.Builder()
+                .setType(1)
+                .setSequenceNumber(45)
+                .setPeerAddress(PacketTest.addr(127, 0, 0, 1))
+                .setPortNumber(2100)
+                .setPayload("Hello World".getBytes())
+                .create();
+        ByteBuffer buf = ByteBuffer.allocate(Packet.MAX_LEN);
+        Packet.encode(buf, 1, 45, Packet.addressToInt(PacketTest.addr(127, 0, 0, 1)), 2100, "Hello World".getBytes());
+
+        byte[] raw = new byte[buf.remaining()];
+        buf.get(raw);
+        assertThat(raw).isEqualTo(p.toBytes());
+    }
+
+    @Test
+    public void testStreamIdFollowsTheHeader() throws Exception {
+        ByteBuffer buf = ByteBuffer.allocate(Packet.MAX_LEN);
+        Packet.encode(buf, UDPClient.DATA, 7, Packet.addressToInt(PacketTest.addr(127, 0, 0, 1)), 2100, 65000, "Hello World".getBytes());
+        assertThat(buf.remaining()).isEqualTo(Packet.MIN_LEN + Packet.STREAM_HEADER_LEN + 11);
+
+        PacketView view = new PacketView().wrap(buf);
+
+        assertThat(view.getType()).isEqualTo(UDPClient.DATA);
+        assertThat(view.getStreamId()).isEqualTo(65000);
+        assertThat(view.getSequenceNumber()).isEqualTo(7);
+        assertThat(view.getPeerPort()).isEqualTo(2100);
+        assertThat(view.payloadToString()).isEqualTo("Hello World");
+
+        Packet.encode(buf, UDPClient.DATA, 7, 0, 2100, "Hello World".getBytes());
+        assertThat(new PacketView().wrap(buf).getStreamId()).isEqualTo(Packet.NO_STREAM);
+    }
+}
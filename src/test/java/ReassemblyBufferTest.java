@@ -0,0 +1,52 @@
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+
+public class ReassemblyBufferTest {
+
+    @Test
+    public void testPacketsAheadOfAGapWaitForIt() {
+        ReassemblyBuffer buffer = new ReassemblyBuffer(4, -1);
+        assertThat(buffer.put(0, bytes("ab"))).isTrue();
+        assertThat(buffer.put(2, bytes("ef"))).isTrue();
+        assertThat(buffer.put(3, bytes("g"))).isTrue();
+        assertThat(buffer.put(2, bytes("ef"))).isFalse();
+        assertThat(buffer.decode(StandardCharsets.UTF_8)).isEqualTo("ab");
+
+        assertThat(buffer.put(1, bytes("cd"))).isTrue();
+        assertThat(buffer.getNextSequenceNumber()).isEqualTo(4);
+        assertThat(buffer.decode(StandardCharsets.UTF_8)).isEqualTo("abcdefg");
+        assertThat(buffer.put(0, bytes("ab"))).isFalse();
+        // beyond the window
+        assertThat(buffer.put(8, bytes("x"))).isFalse();
+    }
+
+    @Test
+    public void testCharacterSplitAcrossPackets() {
+        byte[] euro = "\u20ac".getBytes(StandardCharsets.UTF_8);
+        ReassemblyBuffer buffer = new ReassemblyBuffer(4, 2);
+        buffer.put(1, ByteBuffer.wrap(euro, 1, 2));
+        buffer.put(0, ByteBuffer.wrap(euro, 0, 1));
+        assertThat(buffer.size()).isEqualTo(3);
+        assertThat(buffer.decode(StandardCharsets.UTF_8)).isEqualTo("\u20ac");
+    }
+
+    @Test
+    public void testGrowsPastTheExpectedSize() {
+        ReassemblyBuffer buffer = new ReassemblyBuffer(2, 1);
+        byte[] full = new byte[Packet.MAX_LEN - Packet.MIN_LEN];
+        for (int i = 0; i < 100; i++) {
+            buffer.put(i, ByteBuffer.wrap(full));
+        }
+        assertThat(buffer.size()).isEqualTo(100 * full.length);
+        assertThat(buffer.contiguous().remaining()).isEqualTo(100 * full.length);
+    }
+
+    private static ByteBuffer bytes(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+    }
+}
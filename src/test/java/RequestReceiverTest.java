@@ -0,0 +1,58 @@
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+
+public class RequestReceiverTest {
+
+    private static PacketView packet(long seq, String payload) throws Exception {
+        Packet p = new Packet.Builder()
+                .setType(UDPClient.DATA)
+                .setSequenceNumber(seq)
+                .setPeerAddress(InetAddress.getLoopbackAddress())
+                .setPortNumber(41830)
+                .setPayload(payload.getBytes())
+                .create();
+        return new PacketView().wrap(ByteBuffer.wrap(p.toBytes()));
+    }
+
+    @Test
+    public void testBodyIsStreamedInOrder() throws Exception {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        List<String> heads = new ArrayList<>();
+        RequestReceiver receiver = new RequestReceiver((request, head) -> {
+            heads.add(head);
+            request.streamBodyTo(Channels.newChannel(body), 10);
+        });
+
+        receiver.receive(packet(2, "56789Connection: Close\n"));
+        receiver.receive(packet(0, "POST /a.txt HTTP/1.0\nContent-"));
+        assertThat(heads).isEmpty();
+        receiver.receive(packet(1, "Length: 10\n\n01234"));
+        receiver.receive(packet(1, "Length: 10\n\n01234"));
+        receiver.finish();
+
+        assertThat(heads).containsExactly("POST /a.txt HTTP/1.0\nContent-Length: 10");
+        assertThat(body.toString()).isEqualTo("0123456789");
+        assertThat(receiver.getBodyWritten()).isEqualTo(10);
+    }
+
+    @Test
+    public void testRequestWithoutBlankLineIsParsedOnFinish() throws Exception {
+        List<String> heads = new ArrayList<>();
+        RequestReceiver receiver = new RequestReceiver((request, head) -> heads.add(head));
+
+        receiver.receive(packet(0, "GET / HTTP/1.0\nConnection: Close\n"));
+        assertThat(heads).isEmpty();
+        receiver.finish();
+
+        assertThat(heads).containsExactly("GET / HTTP/1.0\nConnection: Close\n");
+    }
+}
@@ -0,0 +1,154 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+
+public class ResponseCacheTest {
+
+    private Path root;
+
+    @Before
+    public void createRoot() throws IOException {
+        root = Files.createTempDirectory("cache");
+    }
+
+    @After
+    public void deleteRoot() throws IOException {
+        try (Stream<Path> files = Files.list(root)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(root);
+    }
+
+    @Test
+    public void testLoadedFileIsServedUntilItChanges() throws Exception {
+        ResponseCache cache = new ResponseCache(1 << 20);
+        Path file = write("a.txt", "hello");
+        assertThat(cache.get(file, attrs(file))).isNull();
+
+        cache.load(file, attrs(file), "Content-Length: 5\r\n\r\n");
+        ResponseCache.Entry entry = cache.get(root.resolve("./a.txt"), attrs(file));
+        assertThat(entry).isNotNull();
+        assertThat(entry.getHeaders()).isEqualTo("Content-Length: 5\r\n\r\n");
+        assertThat(body(entry)).isEqualTo("hello");
+        // Every response reads the body from the start.
+        assertThat(body(entry)).isEqualTo("hello");
+        assertThat(cache.getHits()).isEqualTo(1);
+
+        Files.write(file, " world".getBytes(StandardCharsets.US_ASCII), StandardOpenOption.APPEND);
+        assertThat(cache.get(file, attrs(file))).isNull();
+    }
+
+    @Test
+    public void testInvalidateDropsTheFile() throws Exception {
+        ResponseCache cache = new ResponseCache(1 << 20);
+        Path file = write("a.txt", "hello");
+        cache.load(file, attrs(file), "");
+        cache.invalidate(file);
+
+        assertThat(cache.get(file, attrs(file))).isNull();
+        assertThat(cache.size()).isZero();
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvictedFirst() throws Exception {
+        ResponseCache cache = new ResponseCache(80);
+        Path[] files = new Path[9];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = write(i + ".txt", "0123456789");
+        }
+        for (int i = 0; i < 8; i++) {
+            cache.load(files[i], attrs(files[i]), "");
+        }
+        cache.get(files[0], attrs(files[0]));
+        cache.load(files[8], attrs(files[8]), "");
+
+        assertThat(cache.size()).isEqualTo(80);
+        assertThat(cache.get(files[0], attrs(files[0]))).isNotNull();
+        assertThat(cache.get(files[1], attrs(files[1]))).isNull();
+        assertThat(cache.get(files[8], attrs(files[8]))).isNotNull();
+    }
+
+    @Test
+    public void testHeadSharesTheFirstPacketWithTheBody() throws Exception {
+        ResponseCache cache = new ResponseCache(1 << 20);
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            content.append((char) ('a' + i % 26));
+        }
+        Path file = write("a.txt", content.toString());
+        ResponseCache.Entry entry = cache.load(file, attrs(file), "Content-Length: 3000\r\n\r\n");
+
+        PacketSource response = entry.newResponse("HTTP/1.0 200 OK\r\n");
+        ByteBuffer first = response.next();
+        assertThat(first.remaining()).isEqualTo(UDPClient.DATA_CHUNK_SIZE);
+        assertThat(response.packetCount()).isEqualTo(PacketSource.packetCount(41 + 3000));
+        assertThat(read(first, response)).isEqualTo("HTTP/1.0 200 OK\r\nContent-Length: 3000\r\n\r\n" + content);
+    }
+
+    @Test
+    public void testLargeFileIsNotCached() throws Exception {
+        ResponseCache cache = new ResponseCache(64);
+        Path file = write("a.txt", "0123456789");
+
+        assertThat(cache.load(file, attrs(file), "")).isNull();
+        assertThat(cache.size()).isZero();
+    }
+
+    @Test
+    public void testNothingIsCachedWithoutCapacity() throws Exception {
+        ResponseCache cache = new ResponseCache(0);
+        Path file = write("a.txt", "");
+
+        assertThat(cache.load(file, attrs(file), "")).isNull();
+        assertThat(cache.get(file, attrs(file))).isNull();
+    }
+
+    @Test
+    public void testFileChangedSinceItsAttributesIsNotCached() throws Exception {
+        ResponseCache cache = new ResponseCache(1 << 20);
+        Path file = write("a.txt", "hello");
+        BasicFileAttributes attrs = attrs(file);
+        Files.write(file, " world".getBytes(StandardCharsets.US_ASCII), StandardOpenOption.APPEND);
+
+        assertThat(cache.load(file, attrs, "")).isNull();
+        assertThat(cache.size()).isZero();
+    }
+
+    private Path write(String name, String content) throws IOException {
+        return Files.write(root.resolve(name), content.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static BasicFileAttributes attrs(Path file) throws IOException {
+        return Files.readAttributes(file, BasicFileAttributes.class);
+    }
+
+    private static String body(ResponseCache.Entry entry) throws IOException {
+        PacketSource body = entry.newBody();
+        return read(body.next(), body);
+    }
+
+    private static String read(ByteBuffer first, PacketSource source) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (ByteBuffer payload = first; payload != null; payload = source.next()) {
+            byte[] bytes = new byte[payload.remaining()];
+            payload.get(bytes);
+            out.write(bytes);
+        }
+        return new String(out.toByteArray(), StandardCharsets.US_ASCII);
+    }
+}
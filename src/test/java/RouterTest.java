@@ -0,0 +1,119 @@
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+
+public class RouterTest {
+
+    private static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+
+    @Test
+    public void testPacketIsForwardedWithTheSenderAsPeer() throws Exception {
+        try (Router router = new Router(0).start();
+             DatagramChannel a = open();
+             DatagramChannel b = open()) {
+            send(a, router, b, 42);
+            PacketView received = receive(b);
+            assertThat(received.getSequenceNumber()).isEqualTo(42);
+            assertThat(received.getPeerAddress()).isEqualTo(LOOPBACK);
+            assertThat(received.getPeerPort()).isEqualTo(port(a));
+            assertThat(received.payloadToString()).isEqualTo("hello");
+        }
+    }
+
+    @Test
+    public void testSameSeedDropsTheSamePackets() throws Exception {
+        List<Long> first = deliveredWithSeed(7);
+        List<Long> second = deliveredWithSeed(7);
+        assertThat(first).isEqualTo(second);
+        assertThat(first.size()).isBetween(30, 70);
+    }
+
+    @Test
+    public void testDuplicatesAndDelay() throws Exception {
+        try (Router router = new Router(0).setDuplicateRate(1).setDelay(20, 0).start();
+             DatagramChannel a = open();
+             DatagramChannel b = open()) {
+            long sentAt = System.nanoTime();
+            send(a, router, b, 1);
+            assertThat(receive(b).getSequenceNumber()).isEqualTo(1);
+            assertThat(System.nanoTime() - sentAt).isGreaterThanOrEqualTo(20000000L);
+            assertThat(receive(b).getSequenceNumber()).isEqualTo(1);
+            assertThat(router.getDuplicated()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void testFullQueueDropsTheTail() throws Exception {
+        try (Router router = new Router(0).setBandwidth(1000).setQueueLimit(100).start();
+             DatagramChannel a = open();
+             DatagramChannel b = open()) {
+            for (int seq = 0; seq < 20; seq++) {
+                send(a, router, b, seq);
+            }
+            assertThat(receive(b).getSequenceNumber()).isEqualTo(0);
+            long deadline = System.currentTimeMillis() + 2000;
+            while (router.getForwarded() + router.getQueueDropped() < 20 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            // 100 bytes hold only a few packets of 16, the ones sent after are dropped.
+            assertThat(router.getQueueDropped()).isGreaterThan(10);
+            assertThat(router.getForwarded()).isBetween(1L, 8L);
+        }
+    }
+
+    private static List<Long> deliveredWithSeed(long seed) throws Exception {
+        List<Long> delivered = new ArrayList<>();
+        try (Router router = new Router(0).setDropRate(0.5).setSeed(seed).start();
+             DatagramChannel a = open();
+             DatagramChannel b = open()) {
+            for (int seq = 0; seq < 100; seq++) {
+                send(a, router, b, seq);
+            }
+            b.configureBlocking(false);
+            long deadline = System.currentTimeMillis() + 2000;
+            while (router.getForwarded() + router.getDropped() < 100 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            Thread.sleep(50);
+            ByteBuffer buf = ByteBuffer.allocate(Packet.MAX_LEN);
+            while (b.receive(buf) != null) {
+                buf.flip();
+                delivered.add(new PacketView().wrap(buf).getSequenceNumber());
+                buf.clear();
+            }
+            assertThat(router.getForwarded()).isEqualTo(delivered.size());
+        }
+        return delivered;
+    }
+
+    private static DatagramChannel open() throws Exception {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(LOOPBACK, 0));
+        return channel;
+    }
+
+    private static int port(DatagramChannel channel) throws Exception {
+        return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+    }
+
+    private static void send(DatagramChannel from, Router router, DatagramChannel to, long seq) throws Exception {
+        ByteBuffer buf = ByteBuffer.allocate(Packet.MAX_LEN);
+        Packet.encode(buf, UDPClient.DATA, seq, Packet.addressToInt(LOOPBACK), port(to), "hello".getBytes());
+        from.send(buf, new InetSocketAddress(LOOPBACK, router.getPort()));
+    }
+
+    private static PacketView receive(DatagramChannel channel) throws Exception {
+        ByteBuffer buf = ByteBuffer.allocate(Packet.MAX_LEN);
+        channel.receive(buf);
+        buf.flip();
+        return new PacketView().wrap(buf);
+    }
+}
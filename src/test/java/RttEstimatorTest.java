@@ -0,0 +1,52 @@
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+
+public class RttEstimatorTest {
+
+    private static final long MS = 1000000;
+
+    @Test
+    public void testTimeoutFollowsTheSamples() {
+        RttEstimator rtt = new RttEstimator();
+        assertThat(rtt.hasSample()).isFalse();
+        assertThat(rtt.getRtoMillis()).isEqualTo(RttEstimator.INITIAL_RTO_MS);
+
+        rtt.onSample(100 * MS);
+        // srtt = 100ms, rttvar = 50ms
+        assertThat(rtt.getSmoothedRttNanos()).isEqualTo(100 * MS);
+        assertThat(rtt.getRtoMillis()).isEqualTo(300);
+
+        rtt.onSample(100 * MS);
+        // rttvar = 37.5ms
+        assertThat(rtt.getRtoMillis()).isEqualTo(250);
+    }
+
+    @Test
+    public void testSubMillisecondSamplesAreNotLost() {
+        RttEstimator rtt = new RttEstimator();
+        for (int i = 0; i < 100; i++) {
+            rtt.onSample(300000);
+        }
+        assertThat(rtt.getSmoothedRttNanos()).isEqualTo(300000);
+        assertThat(rtt.getRtoMillis()).isEqualTo(RttEstimator.MIN_RTO_MS);
+    }
+
+    @Test
+    public void testTimeoutBacksOffUntilTheNextSample() {
+        RttEstimator rtt = new RttEstimator();
+        rtt.onSample(100 * MS);
+        rtt.onTimeout();
+        assertThat(rtt.getRtoMillis()).isEqualTo(600);
+        rtt.onTimeout();
+        assertThat(rtt.getRtoMillis()).isEqualTo(1200);
+        for (int i = 0; i < 20; i++) {
+            rtt.onTimeout();
+        }
+        assertThat(rtt.getRtoMillis()).isEqualTo(RttEstimator.MAX_RTO_MS);
+
+        rtt.onSample(100 * MS);
+        assertThat(rtt.getRtoMillis()).isLessThan(600);
+    }
+}
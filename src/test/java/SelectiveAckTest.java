@@ -0,0 +1,62 @@
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+
+public class SelectiveAckTest {
+
+    @Test
+    public void testInOrderPacketsAreDelayed() {
+        SelectiveAck sack = new SelectiveAck();
+        for (int i = 0; i < SelectiveAck.ACK_EVERY - 1; i++) {
+            assertThat(sack.record(i)).isFalse();
+        }
+        assertThat(sack.record(SelectiveAck.ACK_EVERY - 1)).isTrue();
+        assertThat(sack.getCumulative()).isEqualTo(SelectiveAck.ACK_EVERY);
+    }
+
+    @Test
+    public void testGapIsReportedRightAway() {
+        SelectiveAck sack = new SelectiveAck();
+        assertThat(sack.record(0)).isFalse();
+        assertThat(sack.record(2)).isTrue();
+        assertThat(sack.record(1)).isTrue();
+        assertThat(sack.getCumulative()).isEqualTo(3);
+    }
+
+    @Test
+    public void testBitmapRoundTrip() throws Exception {
+        SelectiveAck sack = new SelectiveAck();
+        for (long seq : new long[]{0, 1, 3, 4, 12}) {
+            sack.record(seq);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(Packet.MAX_LEN);
+        PacketView view = new PacketView().wrap(sack.writeTo(buf, 0, 8007));
+        assertThat(view.getType()).isEqualTo(UDPClient.SACK);
+        assertThat(view.getSequenceNumber()).isEqualTo(2);
+
+        SlidingWindow acked = new SlidingWindow(16);
+        assertThat(SelectiveAck.markAcked(view, acked, 16)).isEqualTo(5);
+        for (int i = 0; i < 16; i++) {
+            assertThat(acked.get(i)).isEqualTo(i == 0 || i == 1 || i == 3 || i == 4 || i == 12);
+        }
+    }
+
+    @Test
+    public void testReceiveWindowIsAdvertised() throws Exception {
+        SelectiveAck sack = new SelectiveAck();
+        sack.setReceiveWindow(4);
+        sack.record(0);
+        sack.record(2);
+        assertThat(sack.isInWindow(3)).isTrue();
+        assertThat(sack.isInWindow(5)).isFalse();
+
+        PacketView view = new PacketView().wrap(sack.writeTo(ByteBuffer.allocate(Packet.MAX_LEN), 0, 8007));
+        assertThat(SelectiveAck.getReceiveWindow(view)).isEqualTo(4);
+        SlidingWindow acked = new SlidingWindow(16);
+        assertThat(SelectiveAck.markAcked(view, acked, 8)).isEqualTo(2);
+        assertThat(acked.get(2)).isTrue();
+    }
+}
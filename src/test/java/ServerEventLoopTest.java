@@ -0,0 +1,65 @@
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+
+public class ServerEventLoopTest {
+
+    @Test
+    public void testConnectionsOfOneHostAreSpreadOverTheLoops() throws Exception {
+        int address = Packet.addressToInt(InetAddress.getLoopbackAddress());
+        int[] perLoop = new int[4];
+        for (int port = 41830; port < 42830; port++) {
+            long key = ServerEventLoop.sessionKey(address, port);
+            int owner = ServerEventLoop.owner(key, perLoop.length);
+            assertThat(ServerEventLoop.owner(key, perLoop.length)).isEqualTo(owner);
+            perLoop[owner] += 1;
+        }
+        for (int count : perLoop) {
+            assertThat(count).isBetween(200, 300);
+        }
+    }
+
+    @Test
+    public void testLoopOutlivesARouterThatWentAway() throws Exception {
+        int port;
+        try (DatagramChannel probe = DatagramChannel.open().bind(new InetSocketAddress(0))) {
+            port = ((InetSocketAddress) probe.getLocalAddress()).getPort();
+        }
+        try (UDPServer server = new UDPServer(1)) {
+            server.start(port, 1, false);
+            InetSocketAddress serverAddr = new InetSocketAddress("localhost", port);
+            int client = Packet.addressToInt(InetAddress.getLoopbackAddress());
+
+            try (DatagramChannel gone = DatagramChannel.open().bind(new InetSocketAddress(0))) {
+                gone.send(syn(client, 41900), serverAddr);
+            }
+            // The SYN_ACK to the closed router draws a port unreachable, the next router must still be answered.
+            Thread.sleep(100);
+            try (DatagramChannel router = DatagramChannel.open().bind(new InetSocketAddress(0))) {
+                router.configureBlocking(false);
+                router.send(syn(client, 41901), serverAddr);
+                ByteBuffer response = ByteBuffer.allocate(Packet.MAX_LEN);
+                long deadline = System.currentTimeMillis() + 2000;
+                while (router.receive(response) == null && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+                response.flip();
+                assertThat(response.hasRemaining()).isTrue();
+                assertThat(new PacketView().wrap(response).getType()).isEqualTo(UDPClient.SYN_ACK);
+            }
+        }
+    }
+
+    private static ByteBuffer syn(int client, int clientPort) {
+        ByteBuffer buf = ByteBuffer.allocate(Packet.MAX_LEN);
+        Packet.encode(buf, UDPClient.SYN, 0, client, clientPort, "SYN".getBytes(StandardCharsets.US_ASCII));
+        return buf;
+    }
+}
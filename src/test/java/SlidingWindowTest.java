@@ -0,0 +1,55 @@
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+
+public class SlidingWindowTest {
+
+    @Test
+    public void testBaseSlidesPastTheHead() {
+        SlidingWindow window = new SlidingWindow(10);
+        assertThat(window.capacity()).isEqualTo(64);
+        assertThat(window.set(1)).isTrue();
+        assertThat(window.set(2)).isTrue();
+        assertThat(window.set(2)).isFalse();
+        assertThat(window.advance()).isZero();
+        assertThat(window.getCount()).isEqualTo(2);
+
+        window.set(0);
+        assertThat(window.advance()).isEqualTo(3);
+        assertThat(window.getBase()).isEqualTo(3);
+        assertThat(window.getCount()).isZero();
+        assertThat(window.get(0)).isTrue();
+        assertThat(window.get(3)).isFalse();
+    }
+
+    @Test
+    public void testRingWrapsAroundManyTimes() {
+        SlidingWindow window = new SlidingWindow(100);
+        assertThat(window.capacity()).isEqualTo(128);
+        for (long seq = 0; seq < 10000; seq++) {
+            // every packet arrives right after the next one
+            long reordered = seq % 2 == 0 ? seq + 1 : seq - 1;
+            window.set(reordered);
+            window.advance();
+            assertThat(window.getBase()).isEqualTo(seq % 2 == 0 ? seq : seq + 1);
+        }
+        assertThat(window.getBase()).isEqualTo(10000);
+        assertThat(window.get(10000 + 127)).isFalse();
+        assertThat(window.contains(10000 + 128)).isFalse();
+        assertThatThrownBy(() -> window.set(10000 + 128)).isInstanceOf(IndexOutOfBoundsException.class);
+    }
+
+    @Test
+    public void testAdvanceAcrossWords() {
+        SlidingWindow window = new SlidingWindow(256);
+        window.set(0);
+        window.advance();
+        for (long seq = 1; seq < 200; seq++) {
+            window.set(seq);
+        }
+        assertThat(window.advance()).isEqualTo(199);
+        assertThat(window.getBase()).isEqualTo(200);
+    }
+}
@@ -0,0 +1,82 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+
+public class TimingWheelTest {
+
+    @Test
+    public void testOnlyExpiredTimersFire() throws Exception {
+        TimingWheel wheel = new TimingWheel(1, 16, 1000);
+        List<Long> fired = new ArrayList<>();
+        TimingWheel.Listener listener = (id, deadline) -> fired.add(id);
+        wheel.schedule(listener, 1, 1005);
+        wheel.schedule(listener, 2, 1010);
+        // More than one turn of the wheel away, it shares a slot with the first one.
+        wheel.schedule(listener, 3, 1021);
+        assertThat(wheel.nextDeadline()).isEqualTo(1005);
+
+        wheel.advance(1004);
+        assertThat(fired).isEmpty();
+        wheel.advance(1005);
+        assertThat(fired).containsExactly(1L);
+        assertThat(wheel.nextDeadline()).isEqualTo(1010);
+
+        wheel.advance(1015);
+        assertThat(fired).containsExactly(1L, 2L);
+        assertThat(wheel.nextDeadline()).isEqualTo(1021);
+
+        wheel.advance(1100);
+        assertThat(fired).containsExactly(1L, 2L, 3L);
+        assertThat(wheel.size()).isEqualTo(0);
+        assertThat(wheel.nextDeadline()).isEqualTo(Long.MAX_VALUE);
+    }
+
+    @Test
+    public void testTimersAreCancelledAndMoved() throws Exception {
+        TimingWheel wheel = new TimingWheel(1, 16, 1000);
+        List<Long> fired = new ArrayList<>();
+        TimingWheel.Listener listener = (id, deadline) -> fired.add(id);
+        TimingWheel.Timer first = new TimingWheel.Timer(listener);
+        TimingWheel.Timer second = new TimingWheel.Timer(listener);
+        wheel.schedule(first, 1, 1005);
+        wheel.schedule(second, 2, 1008);
+        wheel.cancel(first);
+        assertThat(first.isPending()).isFalse();
+        assertThat(wheel.nextDeadline()).isEqualTo(1008);
+
+        // Moved rather than added, it fires once for its last deadline.
+        wheel.schedule(second, 3, 1030);
+        assertThat(wheel.size()).isEqualTo(1);
+        assertThat(wheel.nextDeadline()).isEqualTo(1030);
+        wheel.advance(1020);
+        assertThat(fired).isEmpty();
+        wheel.advance(1030);
+        assertThat(fired).containsExactly(3L);
+        assertThat(wheel.nextDeadline()).isEqualTo(Long.MAX_VALUE);
+    }
+
+    @Test
+    public void testTimerCancelledByAnEarlierOneDoesNotFire() throws Exception {
+        TimingWheel wheel = new TimingWheel(1, 16, 1000);
+        List<Long> fired = new ArrayList<>();
+        TimingWheel.Timer later = new TimingWheel.Timer((id, deadline) -> fired.add(id));
+        wheel.schedule((id, deadline) -> wheel.cancel(later), 1, 1002);
+        wheel.schedule(later, 2, 1003);
+        wheel.advance(1005);
+        assertThat(fired).isEmpty();
+        assertThat(wheel.size()).isZero();
+    }
+
+    @Test
+    public void testTimerScheduledInThePastFiresOnNextAdvance() throws Exception {
+        TimingWheel wheel = new TimingWheel(10, 8, 5000);
+        List<Long> fired = new ArrayList<>();
+        wheel.schedule((id, deadline) -> fired.add(deadline), 7, 4000);
+        wheel.advance(5000);
+        assertThat(fired).containsExactly(4000L);
+    }
+}
@@ -0,0 +1,35 @@
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import java.lang.management.ManagementFactory;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+
+public class TransportMetricsTest {
+
+    @Test
+    public void testCountersAreReadableOverJmx() throws Exception {
+        TransportMetrics metrics = new TransportMetrics();
+        metrics.register("test");
+        metrics.onSent(UDPClient.DATA);
+        metrics.onSent(UDPClient.DATA);
+        metrics.onSent(UDPClient.DATA);
+        metrics.onSent(UDPClient.DATA);
+        metrics.onFastRetransmit();
+        metrics.onTransfer(1000, 1000000000);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("A3:type=TransportMetrics,name=test");
+        assertThat(server.getAttribute(name, "Retransmits")).isEqualTo(1L);
+        assertThat(server.getAttribute(name, "RetransmitRate")).isEqualTo(0.25);
+        assertThat(server.getAttribute(name, "GoodputBytesPerSecond")).isEqualTo(1000.0);
+        TabularData sent = (TabularData) server.getAttribute(name, "PacketsSent");
+        CompositeData data = sent.get(new Object[]{"DATA"});
+        assertThat(data.get("value")).isEqualTo(4L);
+        server.unregisterMBean(name);
+    }
+}
@@ -0,0 +1,48 @@
+import org.junit.Test;
+
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+
+public class WorkerPoolTest {
+
+    @Test
+    public void testLaneRunsTasksInOrderAndCompletesOnTheLoop() throws Exception {
+        ExecutorService executor = WorkerPool.newExecutor(4);
+        try (Selector selector = Selector.open()) {
+            WorkerPool workers = new WorkerPool(executor, selector);
+            Executor lane = workers.newLane();
+            List<Integer> order = new ArrayList<>();
+            List<Integer> completed = new ArrayList<>();
+            CountDownLatch done = new CountDownLatch(1);
+            for (int i = 0; i < 1000; i++) {
+                int n = i;
+                lane.execute(() -> order.add(n));
+            }
+            lane.execute(() -> workers.complete(() -> completed.add(order.size())));
+            lane.execute(done::countDown);
+
+            assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+            assertThat(completed).isEmpty();
+            // complete wakes the selector up, so the loop does not wait for its timers.
+            long start = System.currentTimeMillis();
+            selector.select(5000);
+            assertThat(System.currentTimeMillis() - start).isLessThan(4000);
+            workers.runCompletions();
+
+            assertThat(completed).containsExactly(1000);
+            for (int i = 0; i < 1000; i++) {
+                assertThat(order.get(i)).isEqualTo(i);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}